@@ -33,6 +33,7 @@ import java.rmi.server.UnicastRemoteObject;
 import java.security.CodeSource;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.ResourceBundle;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.lang3.StringUtils;
@@ -47,10 +48,12 @@ import se.trixon.jota.shared.JotaClient;
 import se.trixon.jota.shared.JotaHelper;
 import se.trixon.jota.shared.JotaServer;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
 import se.trixon.jota.shared.ServerCommander;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.ServerEventAdapter;
 import se.trixon.jota.shared.ServerEventListener;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 import se.trixon.jota.shared.task.Task;
 
@@ -86,11 +89,18 @@ public final class Client extends UnicastRemoteObject implements ClientCallbacks
                 if (mCurrentJob != null && mCurrentJob.getId() == job.getId() && null != processEvent) {
                     switch (processEvent) {
                         case OUT:
+                        case PROGRESS:
+                        case QUEUED:
                             System.out.println(object);
                             break;
                         case ERR:
                             System.err.println(object);
                             break;
+                        case ITEMS:
+                            ((List<TransferItem>) object).forEach((transferItem) -> {
+                                System.out.println(transferItem);
+                            });
+                            break;
                         case CANCELED:
                             Xlog.timedOut(String.format("\n\n%s", Dict.JOB_INTERRUPTED.toString()));
                         case FINISHED:
@@ -139,6 +149,7 @@ public final class Client extends UnicastRemoteObject implements ClientCallbacks
                 || cmd.hasOption(Main.OPT_LIST_JOBS)
                 || cmd.hasOption(Main.OPT_LIST_TASKS)
                 || cmd.hasOption(Main.OPT_START)
+                || cmd.hasOption(Main.OPT_RESUME)
                 || cmd.hasOption(Main.OPT_STOP);
 
         startRMI();
@@ -167,6 +178,8 @@ public final class Client extends UnicastRemoteObject implements ClientCallbacks
             Jota.exit();
         } else if (cmd.hasOption(Main.OPT_START)) {
             startJob(getJobByName(cmd.getOptionValue(Main.OPT_START)));
+        } else if (cmd.hasOption(Main.OPT_RESUME)) {
+            resumeJob(getJobByName(cmd.getOptionValue(Main.OPT_RESUME)));
         } else if (cmd.hasOption(Main.OPT_STOP)) {
             stopJob(getJobByName(cmd.getOptionValue(Main.OPT_STOP)));
             Jota.exit();
@@ -234,6 +247,13 @@ public final class Client extends UnicastRemoteObject implements ClientCallbacks
         });
     }
 
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) throws RemoteException {
+        mServerEventListeners.stream().forEach((serverEventListener) -> {
+            serverEventListener.onProcessEvents(job, processEventBatch);
+        });
+    }
+
     @Override
     public void onServerEvent(ServerEvent serverEvent) throws RemoteException {
         mServerEventListeners.stream().forEach((serverEventListener) -> {
@@ -352,6 +372,22 @@ public final class Client extends UnicastRemoteObject implements ClientCallbacks
         Naming.rebind(mRmiNameClient, this);
     }
 
+    private void resumeJob(Job job) throws RemoteException {
+        if (job == null) {
+            mCurrentJob = null;
+            Jota.exit(1);
+        } else if (mServerCommander.isRunning(job)) {
+            Xlog.timedErr(String.format("%s: %s", Dict.JOB_ALREADY_RUNNING.toString(), job.getName()));
+            Jota.exit(1);
+        } else {
+            mCurrentJob = job;
+            if (!mServerCommander.resumeJob(job)) {
+                Xlog.timedErr(String.format(mJotaBundle.getString("job_not_interrupted"), job.getName()));
+                Jota.exit(1);
+            }
+        }
+    }
+
     private void startJob(Job job) throws RemoteException {
         if (job == null) {
             mCurrentJob = null;
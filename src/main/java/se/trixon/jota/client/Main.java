@@ -46,6 +46,7 @@ public class Main {
     static final String OPT_LIST_JOBS = "list-jobs";
     static final String OPT_LIST_TASKS = "list-tasks";
     static final String OPT_PORT = "port";
+    static final String OPT_RESUME = "resume";
     static final String OPT_SHUTDOWN = "shutdown";
     static final String OPT_START = "start";
     static final String OPT_STATUS = "status";
@@ -103,6 +104,7 @@ public class Main {
         Option listJobs = new Option("lj", OPT_LIST_JOBS, false, sBundle.getString("opt_list_jobs_desc"));
         Option listTasks = new Option("lt", OPT_LIST_TASKS, false, sBundle.getString("opt_list_tasks_desc"));
         Option start = Option.builder(null).longOpt(OPT_START).argName(jobString).hasArg(true).desc(sBundle.getString("opt_start_desc")).build();
+        Option resume = Option.builder(null).longOpt(OPT_RESUME).argName(jobString).hasArg(true).desc(sBundle.getString("opt_resume_desc")).build();
         Option stop = Option.builder(null).longOpt(OPT_STOP).argName(jobString).hasArg(true).desc(sBundle.getString("opt_stop_desc")).build();
         Option shutdown = new Option("s", OPT_SHUTDOWN, false, sBundle.getString("opt_shutdown_desc"));
         Option status = new Option("u", OPT_STATUS, false, sBundle.getString("opt_status_desc"));
@@ -116,6 +118,7 @@ public class Main {
         options.addOption(listJobs);
         options.addOption(listTasks);
         options.addOption(start);
+        options.addOption(resume);
         options.addOption(stop);
         options.addOption(cron);
         options.addOption(shutdown);
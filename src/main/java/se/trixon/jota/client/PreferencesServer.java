@@ -15,6 +15,7 @@
  */
 package se.trixon.jota.client;
 
+import com.dlsc.formsfx.model.validators.IntegerRangeValidator;
 import com.dlsc.preferencesfx.model.Group;
 import com.dlsc.preferencesfx.model.Setting;
 import java.rmi.RemoteException;
@@ -23,7 +24,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -41,12 +44,18 @@ import se.trixon.jota.shared.ServerEventAdapter;
 public class PreferencesServer {
 
     protected final Logger LOGGER = Logger.getLogger(getClass().getName());
+    private ChangeListener<String> bandwidthChangeListener;
     private ChangeListener<String> logPathChangeListener;
+    private ChangeListener<Number> maxProcessesChangeListener;
+    private ChangeListener<String> resourceLimitsChangeListener;
 
+    private final SimpleStringProperty mBandwidthProperty = new SimpleStringProperty("");
     private final ResourceBundle mBundle = SystemHelper.getBundle(PreferencesModule.class, "Bundle");
     private final Group mGroup;
     private final SimpleStringProperty mLogPathProperty = new SimpleStringProperty("a/b/c");
     private Manager mManager = Manager.getInstance();
+    private final IntegerProperty mMaxProcessesProperty = new SimpleIntegerProperty(4);
+    private final SimpleStringProperty mResourceLimitsProperty = new SimpleStringProperty("");
     private final SimpleStringProperty mRsyncPathProperty = new SimpleStringProperty("rsync");
     private final BooleanProperty mScheduledSyncProperty = new SimpleBooleanProperty(true);
     private ChangeListener<String> rsyncPathChangeListener;
@@ -56,7 +65,11 @@ public class PreferencesServer {
         mGroup = Group.of(Dict.SERVER.toString(),
                 Setting.of(mBundle.getString("prefs.general.scheduledSync"), mScheduledSyncProperty).customKey("general.scheduledSync"),
                 Setting.of(mBundle.getString("prefs.server.rsync"), mRsyncPathProperty).customKey("server.path.rsync2"),
-                Setting.of(Dict.LOG_DIRECTORY.toString(), mLogPathProperty).customKey("server.path.log2")
+                Setting.of(Dict.LOG_DIRECTORY.toString(), mLogPathProperty).customKey("server.path.log2"),
+                Setting.of(mBundle.getString("prefs.server.maxProcesses"), mMaxProcessesProperty).customKey("server.maxProcesses")
+                        .validate(IntegerRangeValidator.between(1, 256, mBundle.getString("prefs.server.maxProcesses.error"))),
+                Setting.of(mBundle.getString("prefs.server.bandwidth"), mBandwidthProperty).customKey("server.bandwidth"),
+                Setting.of(mBundle.getString("prefs.server.resourceLimits"), mResourceLimitsProperty).customKey("server.resourceLimits")
         );
         initListeners();
         if (mManager.isConnected()) {
@@ -65,6 +78,14 @@ public class PreferencesServer {
 
     }
 
+    public SimpleStringProperty bandwidthProperty() {
+        return mBandwidthProperty;
+    }
+
+    public String getBandwidth() {
+        return mBandwidthProperty.get();
+    }
+
     public Group getGroup() {
         return mGroup;
     }
@@ -73,6 +94,14 @@ public class PreferencesServer {
         return mLogPathProperty.get();
     }
 
+    public int getMaxProcesses() {
+        return mMaxProcessesProperty.get();
+    }
+
+    public String getResourceLimits() {
+        return mResourceLimitsProperty.get();
+    }
+
     public String getRsyncPath() {
         return mRsyncPathProperty.get();
     }
@@ -85,6 +114,14 @@ public class PreferencesServer {
         return mLogPathProperty;
     }
 
+    public IntegerProperty maxProcessesProperty() {
+        return mMaxProcessesProperty;
+    }
+
+    public SimpleStringProperty resourceLimitsProperty() {
+        return mResourceLimitsProperty;
+    }
+
     public SimpleStringProperty rsyncPathProperty() {
         return mRsyncPathProperty;
     }
@@ -93,10 +130,22 @@ public class PreferencesServer {
         return mScheduledSyncProperty;
     }
 
+    public void setBandwidth(String bandwidth) {
+        mBandwidthProperty.set(bandwidth);
+    }
+
     public void setLogPath(String path) {
         mLogPathProperty.set(path);
     }
 
+    public void setMaxProcesses(int maxProcesses) {
+        mMaxProcessesProperty.set(maxProcesses);
+    }
+
+    public void setResourceLimits(String resourceLimits) {
+        mResourceLimitsProperty.set(resourceLimits);
+    }
+
     public void setRsyncPath(String path) {
         mRsyncPathProperty.set(path);
     }
@@ -112,6 +161,9 @@ public class PreferencesServer {
     private void addListeners() {
         rsyncPathProperty().addListener(rsyncPathChangeListener);
         logPathProperty().addListener(logPathChangeListener);
+        maxProcessesProperty().addListener(maxProcessesChangeListener);
+        bandwidthProperty().addListener(bandwidthChangeListener);
+        resourceLimitsProperty().addListener(resourceLimitsChangeListener);
         scheduledSyncProperty().addListener(scheduledSyncChangeListener);
     }
 
@@ -138,6 +190,39 @@ public class PreferencesServer {
             }
         };
 
+        maxProcessesChangeListener = (ObservableValue<? extends Number> ov, Number t, Number t1) -> {
+            ServerCommander serverCommander = getServerCommander();
+            if (serverCommander != null) {
+                try {
+                    serverCommander.setMaxProcesses(t1.intValue());
+                } catch (RemoteException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+
+        bandwidthChangeListener = (ObservableValue<? extends String> ov, String t, String t1) -> {
+            ServerCommander serverCommander = getServerCommander();
+            if (serverCommander != null) {
+                try {
+                    serverCommander.setBandwidth(t1);
+                } catch (RemoteException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+
+        resourceLimitsChangeListener = (ObservableValue<? extends String> ov, String t, String t1) -> {
+            ServerCommander serverCommander = getServerCommander();
+            if (serverCommander != null) {
+                try {
+                    serverCommander.setResourceLimits(t1);
+                } catch (RemoteException ex) {
+                    LOGGER.log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+
         scheduledSyncChangeListener = (ObservableValue<? extends Boolean> ov, Boolean t, Boolean t1) -> {
             ServerCommander serverCommander = getServerCommander();
             if (serverCommander != null) {
@@ -183,6 +268,9 @@ public class PreferencesServer {
             setScheduledSync(getServerCommander().isCronActive());
             setRsyncPath(getServerCommander().getRsyncPath());
             setLogPath(getServerCommander().getLogDir());
+            setMaxProcesses(getServerCommander().getMaxProcesses());
+            setBandwidth(getServerCommander().getBandwidth());
+            setResourceLimits(getServerCommander().getResourceLimits());
         } catch (RemoteException ex) {
             LOGGER.log(Level.SEVERE, null, ex);
         }
@@ -191,6 +279,9 @@ public class PreferencesServer {
     private void removeListeners() {
         rsyncPathProperty().removeListener(rsyncPathChangeListener);
         logPathProperty().removeListener(logPathChangeListener);
+        maxProcessesProperty().removeListener(maxProcessesChangeListener);
+        bandwidthProperty().removeListener(bandwidthChangeListener);
+        resourceLimitsProperty().removeListener(resourceLimitsChangeListener);
         scheduledSyncProperty().removeListener(scheduledSyncChangeListener);
     }
 
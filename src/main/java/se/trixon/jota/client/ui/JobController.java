@@ -19,6 +19,7 @@ import com.dlsc.workbenchfx.Workbench;
 import com.dlsc.workbenchfx.model.WorkbenchDialog;
 import java.rmi.RemoteException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javafx.application.Platform;
@@ -28,8 +29,11 @@ import se.trixon.almond.util.Dict;
 import se.trixon.jota.client.Manager;
 import se.trixon.jota.server.JobValidator;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
+import se.trixon.jota.shared.ProgressState;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.ServerEventListener;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 import se.trixon.jota.shared.task.Task;
 
@@ -54,46 +58,19 @@ public class JobController implements ServerEventListener {
     @Override
     public void onProcessEvent(ProcessEvent processEvent, Job job, Task task, Object object) {
         Platform.runLater(() -> {
-            JobModule jobModule = mJobMap.computeIfAbsent(job.getId(), k -> {
-                JobModule module = new JobModule(mWorkbench.getScene(), job);
-                mWorkbench.getModules().add(module);
-                mWorkbench.openModule(module);
+            process(processEvent, job, object);
+        });
+    }
 
-                return module;
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) {
+        // one pass on the FX thread for the whole batch
+        Platform.runLater(() -> {
+            processEventBatch.getEntries().forEach((entry) -> {
+                entry.getObjects().forEach((object) -> {
+                    process(entry.getProcessEvent(), job, object);
+                });
             });
-
-            switch (processEvent) {
-                case STARTED:
-                    jobModule.start();
-                    mWorkbench.openModule(jobModule);
-//                    updateTitle(job, "b");
-//                    updateActionStates();
-                    break;
-                case OUT:
-                case ERR:
-                    jobModule.log(processEvent, (String) object);
-                    break;
-                case CANCELED:
-                    jobModule.log(ProcessEvent.OUT, String.format("\n\n%s", Dict.JOB_INTERRUPTED.toString()));
-                    jobModule.enableSave();
-//                    updateTitle(job, "i");
-//                    updateActionStates();
-                    break;
-                case FAILED:
-                    jobModule.log(ProcessEvent.OUT, String.format("\n\n%s", Dict.JOB_FAILED.toString()));
-                    jobModule.enableSave();
-//                    updateTitle(job, "strike");
-//                    updateActionStates();
-                    break;
-                case FINISHED:
-                    if (object != null) {
-                        jobModule.log(ProcessEvent.OUT, (String) object);
-                    }
-                    jobModule.enableSave();
-//                    updateTitle(job, "normal");
-//                    updateActionStates();
-                    break;
-            }
         });
     }
 
@@ -143,9 +120,58 @@ public class JobController implements ServerEventListener {
         mWorkbench = workbench;
     }
 
+    private void process(ProcessEvent processEvent, Job job, Object object) {
+        JobModule jobModule = mJobMap.computeIfAbsent(job.getId(), k -> {
+            JobModule module = new JobModule(mWorkbench.getScene(), job);
+            mWorkbench.getModules().add(module);
+            mWorkbench.openModule(module);
+
+            return module;
+        });
+
+        switch (processEvent) {
+            case STARTED:
+                jobModule.start();
+                mWorkbench.openModule(jobModule);
+//                    updateTitle(job, "b");
+//                    updateActionStates();
+                break;
+            case QUEUED:
+            case OUT:
+            case ERR:
+                jobModule.log(processEvent, (String) object);
+                break;
+            case ITEMS:
+                jobModule.logItems((List<TransferItem>) object);
+                break;
+            case PROGRESS:
+                jobModule.progress((ProgressState) object);
+                break;
+            case CANCELED:
+                jobModule.log(ProcessEvent.OUT, String.format("\n\n%s", Dict.JOB_INTERRUPTED.toString()));
+                jobModule.enableSave();
+//                    updateTitle(job, "i");
+//                    updateActionStates();
+                break;
+            case FAILED:
+                jobModule.log(ProcessEvent.OUT, String.format("\n\n%s", Dict.JOB_FAILED.toString()));
+                jobModule.enableSave();
+//                    updateTitle(job, "strike");
+//                    updateActionStates();
+                break;
+            case FINISHED:
+                if (object != null) {
+                    jobModule.log(ProcessEvent.OUT, (String) object);
+                }
+                jobModule.enableSave();
+//                    updateTitle(job, "normal");
+//                    updateActionStates();
+                break;
+        }
+    }
+
     private static class Holder {
 
         private static final JobController INSTANCE = new JobController();
     }
-
 }
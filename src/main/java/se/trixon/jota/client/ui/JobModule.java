@@ -17,6 +17,7 @@ package se.trixon.jota.client.ui;
 
 import com.dlsc.workbenchfx.view.controls.ToolbarItem;
 import java.rmi.RemoteException;
+import java.util.List;
 import java.util.logging.Level;
 import javafx.scene.Node;
 import javafx.scene.Scene;
@@ -31,6 +32,8 @@ import se.trixon.almond.util.icons.material.MaterialIcon;
 import static se.trixon.jota.client.ui.MainApp.*;
 import se.trixon.jota.client.ui_swing.Progress;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProgressState;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 
 /**
@@ -133,6 +136,26 @@ public class JobModule extends BaseModule {
         lp.setText(mBuilder.toString());
     }
 
+    void logItems(List<TransferItem> transferItems) {
+        for (TransferItem transferItem : transferItems) {
+            LogTab lp = mInfoLogTab;
+
+            if (mPreferences.general().isSplitDeletions() && transferItem.isDeletion()) {
+                lp = mDeletionLogTab;
+
+                if (!mTabPane.getTabs().contains(lp)) {
+                    mTabPane.getTabs().add(lp);
+                }
+            }
+
+            lp.log(transferItem.toString());
+        }
+    }
+
+    void progress(ProgressState progressState) {
+        mProgressBar.setProgress(progressState.getPercentage() / 100d);
+    }
+
     void start() {
         mBuilder = new StringBuilder();
         initSubTabs();
@@ -62,6 +62,7 @@ import se.trixon.jota.client.Manager;
 import se.trixon.jota.client.ui_swing.editor.EditorPanel;
 import se.trixon.jota.server.JobValidator;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.ServerEventListener;
 import se.trixon.jota.shared.job.Job;
@@ -150,6 +151,11 @@ public class MainFrame extends JFrame implements ConnectionListener, ServerEvent
         // nvm
     }
 
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) {
+        // nvm
+    }
+
     @Override
     public void onServerEvent(ServerEvent serverEvent) {
         switch (serverEvent) {
@@ -47,6 +47,7 @@ import se.trixon.jota.client.ClientOptions;
 import se.trixon.jota.client.ConnectionListener;
 import se.trixon.jota.client.Manager;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.ServerEventListener;
 import se.trixon.jota.shared.job.Job;
@@ -117,7 +118,10 @@ public final class SpeedDialPanel extends JPanel implements ConnectionListener,
     public void onProcessEvent(ProcessEvent processEvent, Job job, Task task, Object object) {
         switch (processEvent) {
             case ERR:
+            case ITEMS:
             case OUT:
+            case PROGRESS:
+            case QUEUED:
                 updateButtons(job, false);
                 break;
             case STARTED:
@@ -135,6 +139,11 @@ public final class SpeedDialPanel extends JPanel implements ConnectionListener,
         }
     }
 
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) {
+        processEventBatch.dispatch(job, this);
+    }
+
     @Override
     public void onServerEvent(ServerEvent serverEvent) {
         switch (serverEvent) {
@@ -22,6 +22,7 @@ import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.HashMap;
+import java.util.List;
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.ActionMap;
@@ -39,8 +40,11 @@ import se.trixon.almond.util.icons.material.MaterialIcon;
 import se.trixon.jota.client.ConnectionListener;
 import se.trixon.jota.client.Manager;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
+import se.trixon.jota.shared.ProgressState;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.ServerEventListener;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 import se.trixon.jota.shared.task.Task;
 
@@ -98,10 +102,17 @@ public class TabHolder extends JTabbedPane implements ConnectionListener, Server
                 updateTitle(job, "b");
                 updateActionStates();
                 break;
+            case QUEUED:
             case OUT:
             case ERR:
                 tabItem.log(processEvent, (String) object);
                 break;
+            case ITEMS:
+                tabItem.logItems((List<TransferItem>) object);
+                break;
+            case PROGRESS:
+                tabItem.progress((ProgressState) object);
+                break;
             case CANCELED:
                 tabItem.log(ProcessEvent.OUT, String.format("\n\n%s", Dict.JOB_INTERRUPTED.toString()));
                 tabItem.enableSave();
@@ -127,6 +138,11 @@ public class TabHolder extends JTabbedPane implements ConnectionListener, Server
         }
     }
 
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) {
+        processEventBatch.dispatch(job, this);
+    }
+
     @Override
     public void onServerEvent(ServerEvent serverEvent) {
     }
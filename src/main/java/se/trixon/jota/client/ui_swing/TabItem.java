@@ -21,6 +21,7 @@ import java.nio.charset.Charset;
 import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.PreferenceChangeEvent;
@@ -42,6 +43,8 @@ import se.trixon.almond.util.swing.dialogs.SimpleDialog;
 import se.trixon.jota.client.ClientOptions;
 import se.trixon.jota.client.Manager;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProgressState;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 
 /**
@@ -126,6 +129,46 @@ public class TabItem extends JPanel implements TabListener {
         });
     }
 
+    synchronized public void logItems(List<TransferItem> transferItems) {
+        SwingUtilities.invokeLater(() -> {
+            StringBuilder logBuilder = new StringBuilder();
+            StringBuilder deletionsBuilder = new StringBuilder();
+
+            for (TransferItem transferItem : transferItems) {
+                if (mOptions.isSplitDeletions() && transferItem.isDeletion()) {
+                    deletionsBuilder.append(transferItem).append("\n");
+                } else {
+                    logBuilder.append(transferItem).append("\n");
+                }
+            }
+
+            if (deletionsBuilder.length() > 0) {
+                if (deletionsLogPanel.getParent() == null) {
+                    tabbedPane.add(deletionsLogPanel, MaterialIcon._Action.DELETE.getImageIcon(AlmondUI.ICON_SIZE_NORMAL));
+                    tabbedPane.setToolTipTextAt(tabbedPane.getTabCount() - 1, Dict.DELETIONS.toString());
+                }
+                deletionsLogPanel.getTextArea().append(deletionsBuilder.toString());
+            }
+
+            if (logBuilder.length() > 0) {
+                logPanel.getTextArea().append(logBuilder.toString());
+            }
+
+            mLastLineWasBlank = false;
+            mLastRowWasProgress = false;
+        });
+    }
+
+    synchronized public void progress(ProgressState progressState) {
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setIndeterminate(false);
+            progressBar.setStringPainted(true);
+
+            progressBar.setValue(progressState.getPercentage());
+            progressBar.setString(progressState.toString());
+        });
+    }
+
     void cancel() {
         try {
             mManager.getServerCommander().stopJob(mJob);
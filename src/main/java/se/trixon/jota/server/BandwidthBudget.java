@@ -0,0 +1,324 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Server wide bandwidth budget, shared by the running rsync processes.
+ *
+ * The budget is a comma separated list of KiB/s limits, optionally for a
+ * time of day, e.g. "08:00-18:00=2000,20000". Ranges may pass midnight, the
+ * entry without a range applies the rest of the time and 0 is unlimited.
+ *
+ * Only processes with a remote source or destination are budgeted, local
+ * copies keep their own --bwlimit, if any.
+ *
+ * rsync can not change --bwlimit while running, so the budget is split when a
+ * process is launched. A new process gets an equal share of the budget,
+ * counting the running and waiting processes, or what is left if that is
+ * less. While less than a minimum share, 1/MAX_SHARES of the budget, is left
+ * it waits for the running processes to release theirs. The allocated total
+ * never exceeds the budget.
+ *
+ * @author Patrik Karlström
+ */
+class BandwidthBudget {
+
+    private static final String BWLIMIT = "--bwlimit";
+    private static final int MAX_SHARES = 8;
+    private static final Pattern RATE_PATTERN = Pattern.compile("(\\d+(?:\\.\\d+)?)([KMGkmg])?(i?[Bb])?");
+    private int mAllocated;
+    private int mNumOfRunning;
+    private int mNumOfWaiting;
+    private final ServerOptions mOptions = ServerOptions.INSTANCE;
+
+    /**
+     * Returns the command with its --bwlimit replaced by the limit of the
+     * allocation.
+     */
+    static List<String> apply(List<String> command, Allocation allocation) {
+        if (!allocation.isBudgeted()) {
+            return command;
+        }
+
+        ArrayList<String> result = new ArrayList<>();
+        for (int i = 0; i < command.size(); i++) {
+            String argument = command.get(i);
+            if (argument.equals(BWLIMIT)) {
+                i++;
+            } else if (!argument.startsWith(BWLIMIT + "=")) {
+                result.add(argument);
+            }
+        }
+
+        result.add(Math.min(1, result.size()), String.format("%s=%d", BWLIMIT, allocation.getLimit()));
+
+        return result;
+    }
+
+    /**
+     * Returns the budget in KiB/s at the given time, 0 if unlimited.
+     *
+     * @param schedule the budget schedule
+     * @param time time of day
+     * @throws IllegalArgumentException if the schedule is malformed
+     */
+    static int getBudget(String schedule, LocalTime time) {
+        int budget = 0;
+
+        for (String entry : StringUtils.split(StringUtils.defaultString(schedule), ',')) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            try {
+                int separator = entry.indexOf('=');
+                if (separator < 0) {
+                    budget = Integer.parseInt(entry);
+                    continue;
+                }
+
+                String[] range = entry.substring(0, separator).split("-");
+                if (range.length != 2) {
+                    throw new IllegalArgumentException(entry);
+                }
+
+                LocalTime from = LocalTime.parse(range[0].trim());
+                LocalTime to = LocalTime.parse(range[1].trim());
+                boolean inRange;
+                if (from.isBefore(to)) {
+                    inRange = !time.isBefore(from) && time.isBefore(to);
+                } else {
+                    inRange = !time.isBefore(from) || time.isBefore(to);
+                }
+
+                if (inRange) {
+                    return Integer.parseInt(entry.substring(separator + 1).trim());
+                }
+            } catch (NumberFormatException | DateTimeParseException ex) {
+                throw new IllegalArgumentException(entry, ex);
+            }
+        }
+
+        return budget;
+    }
+
+    /**
+     * Returns the --bwlimit of a command in KiB/s, 0 if there is none.
+     */
+    static int getLimit(List<String> command) {
+        for (int i = 0; i < command.size(); i++) {
+            String argument = command.get(i);
+            String rate = null;
+            if (argument.equals(BWLIMIT) && i + 1 < command.size()) {
+                rate = command.get(i + 1);
+            } else if (argument.startsWith(BWLIMIT + "=")) {
+                rate = argument.substring(BWLIMIT.length() + 1);
+            }
+
+            if (rate != null) {
+                return parseRate(rate);
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns true if the source or destination of the command is remote,
+     * they are its last two arguments.
+     */
+    static boolean isRemote(List<String> command) {
+        int size = command.size();
+
+        return size >= 2 && (ShardPlanner.isRemote(command.get(size - 2)) || ShardPlanner.isRemote(command.get(size - 1)));
+    }
+
+    /**
+     * Parses an rsync rate, KiB/s unless a suffix says otherwise.
+     */
+    static int parseRate(String rate) {
+        Matcher matcher = RATE_PATTERN.matcher(rate.trim());
+        if (!matcher.matches()) {
+            return 0;
+        }
+
+        double value = Double.parseDouble(matcher.group(1));
+        String unit = StringUtils.defaultString(matcher.group(2), "K").toUpperCase();
+        boolean decimal = matcher.group(3) != null && !matcher.group(3).toLowerCase().startsWith("i");
+        double base = decimal ? 1000 : 1024;
+
+        switch (unit) {
+            case "M":
+                value *= base;
+                break;
+            case "G":
+                value *= base * base;
+                break;
+            default:
+                break;
+        }
+
+        if (decimal) {
+            value = value * 1000 / 1024;
+        }
+
+        // 0 means unlimited to rsync, anything else is at least 1
+        return value == 0 ? 0 : (int) Math.max(1, Math.round(value));
+    }
+
+    BandwidthBudget() {
+    }
+
+    /**
+     * Allocates bandwidth for a process about to be launched, waiting while
+     * less than a minimum share of the budget is left.
+     *
+     * @param command the rsync command
+     * @param onQueued run once, outside of the lock, if the request has to
+     * wait
+     * @return the allocation, release it when the process is done
+     * @throws InterruptedException
+     */
+    Allocation acquire(List<String> command, Runnable onQueued) throws InterruptedException {
+        int taskLimit = getLimit(command);
+        if (!isRemote(command)) {
+            return new Allocation(taskLimit, 0, false);
+        }
+
+        synchronized (this) {
+            // no overtaking of those already waiting
+            Allocation allocation = mNumOfWaiting == 0 ? allocate(taskLimit, false) : null;
+            if (allocation != null) {
+                return allocation;
+            }
+
+            mNumOfWaiting++;
+        }
+
+        onQueued.run();
+
+        synchronized (this) {
+            try {
+                while (true) {
+                    Allocation allocation = allocate(taskLimit, true);
+                    if (allocation != null) {
+                        return allocation;
+                    }
+
+                    // the budget may change with the time of day
+                    wait(60 * 1000);
+                }
+            } finally {
+                mNumOfWaiting--;
+            }
+        }
+    }
+
+    synchronized String getStatus() {
+        int budget;
+        try {
+            budget = getBudget(mOptions.getBandwidth(), LocalTime.now());
+        } catch (IllegalArgumentException ex) {
+            return String.format("invalid (%s)", ex.getMessage());
+        }
+
+        if (budget <= 0) {
+            return "unlimited";
+        } else {
+            return String.format("%d/%d KiB/s (%d rsync, %d waiting)", mAllocated, budget, mNumOfRunning, mNumOfWaiting);
+        }
+    }
+
+    synchronized void release(Allocation allocation) {
+        if (allocation.mRemote) {
+            mNumOfRunning--;
+            mAllocated -= allocation.mBudgeted;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the allocation of a remote process, null if it has to wait.
+     *
+     * @param waiting true if the request is counted as waiting
+     */
+    private Allocation allocate(int taskLimit, boolean waiting) {
+        int budget;
+        try {
+            budget = getBudget(mOptions.getBandwidth(), LocalTime.now());
+        } catch (IllegalArgumentException ex) {
+            budget = 0;
+        }
+
+        if (budget <= 0) {
+            mNumOfRunning++;
+            return new Allocation(taskLimit, 0, true);
+        }
+
+        int available = budget - mAllocated;
+        int minShare = Math.max(1, budget / MAX_SHARES);
+        if (taskLimit > 0) {
+            minShare = Math.min(minShare, taskLimit);
+        }
+
+        if (available < minShare) {
+            return null;
+        }
+
+        int numOfSharing = mNumOfRunning + mNumOfWaiting + (waiting ? 0 : 1);
+        int share = Math.min(available, Math.max(minShare, budget / numOfSharing));
+        if (taskLimit > 0) {
+            share = Math.min(share, taskLimit);
+        }
+        mNumOfRunning++;
+        mAllocated += share;
+
+        return new Allocation(share, share, true);
+    }
+
+    static class Allocation {
+
+        private final int mBudgeted;
+        private final int mLimit;
+        private final boolean mRemote;
+
+        private Allocation(int limit, int budgeted, boolean remote) {
+            mLimit = limit;
+            mBudgeted = budgeted;
+            mRemote = remote;
+        }
+
+        /**
+         * Returns the limit in KiB/s, 0 if unlimited.
+         */
+        int getLimit() {
+            return mLimit;
+        }
+
+        boolean isBudgeted() {
+            return mBudgeted > 0;
+        }
+    }
+}
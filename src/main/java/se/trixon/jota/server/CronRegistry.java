@@ -0,0 +1,314 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import it.sauronsoftware.cron4j.Predictor;
+import it.sauronsoftware.cron4j.SchedulingPattern;
+import java.time.DateTimeException;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongConsumer;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.Jota;
+import se.trixon.jota.shared.job.Job;
+
+/**
+ * The scheduler of the cron items of the jobs.
+ *
+ * Each job has one entry in a queue ordered by its next fire time, the time
+ * its cron items next match plus its jitter offset. A single thread sleeps
+ * until the first entry is due, fires it and puts it back with its next fire
+ * time, so nothing is matched between runs and a run starts at the second it
+ * is due. Fire times passed while the server was suspended are fired once.
+ *
+ * An update only replaces the entries of the jobs whose schedule changed, the
+ * others keep their place in the queue. Triggers carry the job id and the job
+ * is looked up when they fire, so an edited job is run as edited.
+ *
+ * @author Patrik Karlström
+ */
+class CronRegistry {
+
+    private static final long MINUTE = 60 * 1000;
+    private final HashMap<Long, Entry> mEntries = new HashMap<>();
+    private final Runnable mHeartbeat;
+    private long mNextHeartbeat;
+    private final PriorityQueue<Entry> mQueue = new PriorityQueue<>();
+    private Thread mThread;
+    private final LongConsumer mTrigger;
+
+    /**
+     * Returns a predictor of the cron item in the time zone of the job.
+     *
+     * @param from the matches after this time are predicted
+     */
+    static Predictor getPredictor(Job job, String cronString, long from) {
+        Predictor predictor = new Predictor(cronString.trim(), from);
+        predictor.setTimeZone(getTimeZone(job));
+
+        return predictor;
+    }
+
+    /**
+     * Returns the time zone of the job, the one of the server if blank or
+     * unknown.
+     */
+    static TimeZone getTimeZone(Job job) {
+        if (StringUtils.isNotBlank(job.getTimeZone())) {
+            try {
+                return TimeZone.getTimeZone(ZoneId.of(job.getTimeZone().trim()));
+            } catch (DateTimeException ex) {
+                Xlog.timedErr(String.format("%s: %s", job.getName(), ex.getLocalizedMessage()));
+            }
+        }
+
+        return TimeZone.getDefault();
+    }
+
+    /**
+     * Both callbacks run on the scheduler thread and should hand their work
+     * off, a blocking callback delays every trigger after it.
+     *
+     * @param trigger called with the job id when a job is due
+     * @param heartbeat called every minute while started
+     */
+    CronRegistry(LongConsumer trigger, Runnable heartbeat) {
+        mTrigger = trigger;
+        mHeartbeat = heartbeat;
+    }
+
+    synchronized String getStatus() {
+        StringBuilder builder = new StringBuilder(String.format("Schedule (%d jobs)\n", mEntries.size()));
+        PriorityQueue<Entry> queue = new PriorityQueue<>(mQueue);
+        while (!queue.isEmpty()) {
+            Entry entry = queue.poll();
+            Job job = JobManager.INSTANCE.getJobById(entry.mJobId);
+            String name = job == null ? String.valueOf(entry.mJobId) : job.getName();
+            builder.append(String.format("  %s  %s", Jota.millisToDateTime(entry.mFire), name)).append("\n");
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Stops the scheduler and forgets all entries.
+     */
+    synchronized void stop() {
+        mThread = null;
+        mEntries.clear();
+        mQueue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Schedules the jobs with an active cron and removes those no longer
+     * scheduled, starting the scheduler if needed.
+     */
+    synchronized void update(List<Job> jobs) {
+        long now = System.currentTimeMillis();
+        if (mThread == null) {
+            mNextHeartbeat = nextMinute(now);
+            mThread = new Thread(this::run, "jota-cron");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        HashMap<Long, Entry> wanted = new HashMap<>();
+        for (Job job : jobs) {
+            if (job.isCronActive()) {
+                Entry entry = new Entry(job);
+                if (!entry.mCronStrings.isEmpty()) {
+                    wanted.put(job.getId(), entry);
+                }
+            }
+        }
+
+        int changed = 0;
+        int removed = 0;
+        for (Iterator<Map.Entry<Long, Entry>> iterator = mEntries.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<Long, Entry> mapEntry = iterator.next();
+            Entry entry = wanted.get(mapEntry.getKey());
+
+            if (entry == null || !entry.mKey.equals(mapEntry.getValue().mKey)) {
+                mQueue.remove(mapEntry.getValue());
+                iterator.remove();
+                if (entry == null) {
+                    removed++;
+                } else {
+                    changed++;
+                }
+            }
+        }
+
+        int added = 0;
+        for (Entry entry : wanted.values()) {
+            if (!mEntries.containsKey(entry.mJobId)) {
+                entry.schedule(now, now);
+                mEntries.put(entry.mJobId, entry);
+                mQueue.add(entry);
+                added++;
+            }
+        }
+
+        if (added > 0 || removed > 0) {
+            Xlog.timedOut(String.format("cron: %d added, %d changed, %d removed, %d jobs scheduled", added - changed, changed, removed, mEntries.size()));
+        }
+
+        notifyAll();
+    }
+
+    private long nextMinute(long time) {
+        return (time / MINUTE + 1) * MINUTE;
+    }
+
+    private void run() {
+        while (true) {
+            ArrayList<Long> jobIds = new ArrayList<>();
+            boolean heartbeat = false;
+
+            synchronized (this) {
+                if (Thread.currentThread() != mThread) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                long next = mNextHeartbeat;
+                if (!mQueue.isEmpty()) {
+                    next = Math.min(next, mQueue.peek().mFire);
+                }
+
+                if (next > now) {
+                    try {
+                        wait(next - now);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (mNextHeartbeat <= now) {
+                    heartbeat = true;
+                    mNextHeartbeat = nextMinute(now);
+                }
+
+                while (!mQueue.isEmpty() && mQueue.peek().mFire <= now) {
+                    Entry entry = mQueue.poll();
+                    jobIds.add(entry.mJobId);
+                    entry.schedule(entry.mMatch, now);
+                    mQueue.add(entry);
+                }
+            }
+
+            if (heartbeat) {
+                mHeartbeat.run();
+            }
+
+            for (Long jobId : jobIds) {
+                try {
+                    mTrigger.accept(jobId);
+                } catch (RuntimeException ex) {
+                    Xlog.timedErr(ex.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final LinkedHashSet<String> mCronStrings = new LinkedHashSet<>();
+        private long mFire;
+        private final int mJitter;
+        private final Job.JitterMode mJitterMode;
+        private final long mJobId;
+        private final String mKey;
+        private long mMatch;
+        private final TimeZone mTimeZone;
+
+        Entry(Job job) {
+            mJobId = job.getId();
+            mJitter = Math.max(0, job.getJitter());
+            mJitterMode = job.getJitterMode();
+            mTimeZone = getTimeZone(job);
+
+            for (String cronString : StringUtils.split(job.getCronItems(), "|")) {
+                cronString = cronString.trim();
+                if (SchedulingPattern.validate(cronString)) {
+                    mCronStrings.add(cronString);
+                } else if (!cronString.isEmpty()) {
+                    Xlog.timedErr(String.format("%s: invalid pattern \"%s\"", job.getName(), cronString));
+                }
+            }
+
+            mKey = String.format("%s;%s;%d;%s", String.join("|", mCronStrings), mTimeZone.getID(), mJitter, mJitterMode);
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Long.compare(mFire, o.mFire);
+        }
+
+        /**
+         * Sets the next fire time, the first match after from plus the jitter
+         * offset. A fire time already passed, after a suspend or a clock
+         * change, is moved on so that the missed runs are fired only once.
+         */
+        void schedule(long from, long now) {
+            long offset = getOffset();
+            long match = getNextMatch(from);
+            if (match + offset < now) {
+                match = getNextMatch(now - offset);
+            }
+
+            mMatch = match;
+            mFire = match + offset;
+        }
+
+        private long getNextMatch(long from) {
+            long next = Long.MAX_VALUE;
+            for (String cronString : mCronStrings) {
+                Predictor predictor = new Predictor(cronString, from);
+                predictor.setTimeZone(mTimeZone);
+                next = Math.min(next, predictor.nextMatchingTime());
+            }
+
+            return next;
+        }
+
+        /**
+         * Returns the jitter offset in milliseconds, whole seconds within the
+         * window.
+         */
+        private long getOffset() {
+            if (mJitter == 0) {
+                return 0;
+            } else if (mJitterMode == Job.JitterMode.RANDOM) {
+                return ThreadLocalRandom.current().nextInt(mJitter + 1) * 1000L;
+            } else {
+                return new SplittableRandom(mJobId).nextInt(mJitter + 1) * 1000L;
+            }
+        }
+    }
+}
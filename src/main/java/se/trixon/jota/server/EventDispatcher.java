@@ -0,0 +1,126 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.rmi.RemoteException;
+import se.trixon.jota.shared.ClientCallbacks;
+import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProcessEventBatch;
+import se.trixon.jota.shared.job.Job;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Delivers the process events of a running job to the clients in batches.
+ *
+ * Events are collected without waiting on the network and sent by a thread of
+ * their own, in one call per client, when MAX_DELAY ms have passed since the
+ * first of them or when MAX_SIZE have been collected. The events that end a
+ * job are sent at once.
+ *
+ * @author Patrik Karlström
+ */
+class EventDispatcher {
+
+    private static final int MAX_DELAY = 50;
+    private static final int MAX_SIZE = 500;
+    private ProcessEventBatch mBatch = new ProcessEventBatch();
+    private boolean mClosed;
+    private long mFirst;
+    private final Job mJob;
+    private final Server mServer;
+    private final Thread mThread;
+    private boolean mUrgent;
+
+    EventDispatcher(Server server, Job job) {
+        mServer = server;
+        mJob = job;
+        mThread = new Thread(this::run, "jota-events-" + job.getId());
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    synchronized void add(ProcessEvent processEvent, Task task, Object object) {
+        if (mClosed) {
+            ProcessEventBatch batch = new ProcessEventBatch();
+            batch.add(processEvent, task, object);
+            deliver(batch);
+            return;
+        }
+
+        if (mBatch.isEmpty()) {
+            mFirst = System.currentTimeMillis();
+        }
+
+        mBatch.add(processEvent, task, object);
+        mUrgent |= processEvent == ProcessEvent.FINISHED || processEvent == ProcessEvent.FAILED || processEvent == ProcessEvent.CANCELED;
+        notifyAll();
+    }
+
+    /**
+     * Sends what is collected and waits for it to be delivered, later events
+     * are sent directly.
+     */
+    void close() throws InterruptedException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+
+        mThread.join();
+    }
+
+    private void deliver(ProcessEventBatch batch) {
+        mServer.getClientCallbacks().stream().forEach((clientCallback) -> {
+            try {
+                clientCallback.onProcessEvents(mJob, batch);
+            } catch (RemoteException ex) {
+                // nvm
+            }
+        });
+    }
+
+    private void run() {
+        while (true) {
+            ProcessEventBatch batch;
+
+            synchronized (this) {
+                try {
+                    while (mBatch.isEmpty() && !mClosed) {
+                        wait();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    while (!mClosed && !mUrgent && mBatch.size() < MAX_SIZE && now < mFirst + MAX_DELAY) {
+                        wait(mFirst + MAX_DELAY - now);
+                        now = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException ex) {
+                    mClosed = true;
+                }
+
+                if (mBatch.isEmpty()) {
+                    return;
+                }
+
+                batch = mBatch;
+                mBatch = new ProcessEventBatch();
+                mUrgent = false;
+            }
+
+            deliver(batch);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.Jota;
+import se.trixon.jota.shared.job.Job;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Server wide limit of concurrent rsync processes, and of concurrent tasks per
+ * resource tag.
+ *
+ * Waiting requests are admitted by job priority (highest first) and then in
+ * arrival order. A request whose tags are at their limit waits without
+ * holding up the requests after it. The processes of one task, its shards,
+ * count as one task of its tags. A held task keeps its tags between its
+ * processes, e.g. from the dry run of a two-phase task to its apply, until
+ * the hold is released.
+ *
+ * @author Patrik Karlström
+ */
+class ExecutionPool {
+
+    private static final int MAX_FINISHED = 20;
+    private final LinkedList<String> mFinished = new LinkedList<>();
+    private final HashSet<String> mHeld = new HashSet<>();
+    private Map<String, Integer> mLimits = new HashMap<>();
+    private final ReentrantLock mLock = new ReentrantLock();
+    private int mNumOfRunning;
+    private final ServerOptions mOptions = ServerOptions.INSTANCE;
+    private final PriorityQueue<Ticket> mQueue = new PriorityQueue<>();
+    private final Condition mReleased = mLock.newCondition();
+    private final HashMap<Long, Integer> mRunning = new HashMap<>();
+    private final HashMap<Long, String> mRunningNames = new HashMap<>();
+    private long mSequence;
+    private final HashMap<String, HashMap<String, Integer>> mTags = new HashMap<>();
+
+    ExecutionPool() {
+        loadLimits();
+    }
+
+    /**
+     * Blocks until a process slot is available for the task and its resource
+     * tags are below their limits.
+     *
+     * @param job the requesting job
+     * @param task the task to run
+     * @param onQueued run once, outside of the pool lock, if the request has
+     * to wait
+     * @return the ticket to release
+     * @throws InterruptedException
+     */
+    Ticket acquire(Job job, Task task, Runnable onQueued) throws InterruptedException {
+        Set<String> tags = ResourceTags.getTags(task);
+        Ticket ticket;
+        boolean queued;
+
+        mLock.lock();
+        try {
+            ticket = new Ticket(job, task, tags, mSequence++);
+            mQueue.add(ticket);
+            queued = !isAdmissible(ticket);
+        } finally {
+            mLock.unlock();
+        }
+
+        if (queued) {
+            onQueued.run();
+        }
+
+        mLock.lock();
+        try {
+            while (!isAdmissible(ticket)) {
+                mReleased.await();
+            }
+
+            mQueue.remove(ticket);
+            mNumOfRunning++;
+            mRunning.merge(job.getId(), 1, Integer::sum);
+            mRunningNames.put(job.getId(), job.getName());
+            ticket.mTags.forEach((tag) -> {
+                mTags.computeIfAbsent(tag, (k) -> new HashMap<>()).merge(ticket.mHolder, 1, Integer::sum);
+            });
+            mReleased.signalAll();
+        } catch (InterruptedException ex) {
+            mQueue.remove(ticket);
+            mReleased.signalAll();
+            throw ex;
+        } finally {
+            mLock.unlock();
+        }
+
+        return ticket;
+    }
+
+    void finished(Job job, String status) {
+        mLock.lock();
+        try {
+            mFinished.addFirst(String.format("%s %s %s", Jota.nowToDateTime(), job.getName(), status));
+            while (mFinished.size() > MAX_FINISHED) {
+                mFinished.removeLast();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    String getStatus() {
+        int pad = 13;
+
+        mLock.lock();
+        try {
+            StringBuilder builder = new StringBuilder(String.format("Execution pool (%d/%d rsync processes)\n", mNumOfRunning, getMaxProcesses()));
+            mRunning.forEach((id, count) -> {
+                builder.append(String.format("  %s%s (%d)", StringUtils.rightPad("running", pad), mRunningNames.get(id), count)).append("\n");
+            });
+
+            mTags.forEach((tag, holders) -> {
+                int limit = getLimit(tag);
+                String max = limit > 0 ? String.valueOf(limit) : "-";
+                builder.append(String.format("  %s%s (%d/%s tasks)", StringUtils.rightPad("tag", pad), tag, holders.size(), max)).append("\n");
+            });
+
+            ArrayList<Ticket> tickets = new ArrayList<>(mQueue);
+            tickets.sort(null);
+            tickets.forEach((ticket) -> {
+                String full = StringUtils.join(getFullTags(ticket), ", ");
+                String waiting = full.isEmpty() ? "" : String.format(" (waiting for %s)", full);
+                builder.append(String.format("  %s%s%s", StringUtils.rightPad("queued", pad), ticket.mJobName, waiting)).append("\n");
+            });
+
+            mFinished.forEach((finished) -> {
+                builder.append(String.format("  %s%s", StringUtils.rightPad("finished", pad), finished)).append("\n");
+            });
+
+            return builder.toString();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the tags of the task once its first process is admitted, until
+     * releaseTags, so that no other task takes them between its processes.
+     */
+    void holdTags(Job job, Task task) {
+        mLock.lock();
+        try {
+            mHeld.add(getHolder(job, task));
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void release(Ticket ticket) {
+        mLock.lock();
+        try {
+            mNumOfRunning--;
+            if (mRunning.merge(ticket.mJobId, -1, Integer::sum) <= 0) {
+                mRunning.remove(ticket.mJobId);
+                mRunningNames.remove(ticket.mJobId);
+            }
+            boolean held = mHeld.contains(ticket.mHolder);
+            ticket.mTags.forEach((tag) -> {
+                HashMap<String, Integer> holders = mTags.get(tag);
+                // a held task keeps its tags without a running process
+                if (holders.merge(ticket.mHolder, -1, Integer::sum) <= 0 && !held) {
+                    holders.remove(ticket.mHolder);
+                }
+                if (holders.isEmpty()) {
+                    mTags.remove(tag);
+                }
+            });
+            mReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the tags held for the task, those of its running processes are
+     * kept until the processes are released.
+     */
+    void releaseTags(Job job, Task task) {
+        mLock.lock();
+        try {
+            String holder = getHolder(job, task);
+            mHeld.remove(holder);
+            mTags.values().forEach((holders) -> {
+                holders.remove(holder, 0);
+            });
+            mTags.values().removeIf(HashMap::isEmpty);
+            mReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up waiting requests, call after the limits have changed.
+     */
+    void update() {
+        mLock.lock();
+        try {
+            loadLimits();
+            mReleased.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the tags of the ticket that are at their limit.
+     */
+    private ArrayList<String> getFullTags(Ticket ticket) {
+        ArrayList<String> full = new ArrayList<>();
+        for (String tag : ticket.mTags) {
+            int limit = getLimit(tag);
+            HashMap<String, Integer> holders = mTags.get(tag);
+            if (limit > 0 && holders != null && !holders.containsKey(ticket.mHolder) && holders.size() >= limit) {
+                full.add(tag);
+            }
+        }
+
+        return full;
+    }
+
+    private static String getHolder(Job job, Task task) {
+        return job.getId() + "/" + task.getId();
+    }
+
+    private int getLimit(String tag) {
+        return mLimits.getOrDefault(tag, mLimits.getOrDefault(ResourceTags.ANY, 0));
+    }
+
+    private int getMaxProcesses() {
+        return Math.max(1, mOptions.getMaxProcesses());
+    }
+
+    /**
+     * Returns true if the ticket is the first waiting one that its tags let
+     * run, and a process slot is free.
+     */
+    private boolean isAdmissible(Ticket ticket) {
+        if (mNumOfRunning >= getMaxProcesses() || !getFullTags(ticket).isEmpty()) {
+            return false;
+        }
+
+        for (Ticket other : mQueue) {
+            if (other != ticket && other.compareTo(ticket) < 0 && getFullTags(other).isEmpty()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void loadLimits() {
+        try {
+            mLimits = ResourceTags.parseLimits(mOptions.getResourceLimits());
+        } catch (IllegalArgumentException ex) {
+            Xlog.timedErr(String.format("Invalid resource limit: %s", ex.getMessage()));
+            mLimits = new HashMap<>();
+        }
+    }
+
+    static class Ticket implements Comparable<Ticket> {
+
+        private final String mHolder;
+        private final long mJobId;
+        private final String mJobName;
+        private final int mPriority;
+        private final long mSequence;
+        private final Set<String> mTags;
+
+        private Ticket(Job job, Task task, Set<String> tags, long sequence) {
+            mJobId = job.getId();
+            mJobName = job.getName();
+            mPriority = job.getPriority();
+            mHolder = getHolder(job, task);
+            mTags = tags;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            int result = Integer.compare(o.mPriority, mPriority);
+            if (result == 0) {
+                result = Long.compare(mSequence, o.mSequence);
+            }
+
+            return result;
+        }
+    }
+}
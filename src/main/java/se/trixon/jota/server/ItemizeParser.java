@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import se.trixon.jota.shared.TransferItem;
+
+/**
+ * Parses rsync output written with {@link #OUT_FORMAT}.
+ *
+ * @author Patrik Karlström
+ */
+class ItemizeParser {
+
+    static final String OUT_FORMAT = "--out-format=%i %l %n";
+    private static final String DELETING = "*deleting";
+    private static final int FLAGS_LENGTH = 11;
+
+    /**
+     * Returns the item of an itemized line or null if the line is something
+     * else, e.g. statistics or a message.
+     */
+    static TransferItem parse(String line) {
+        if (line.length() < FLAGS_LENGTH + 3 || line.charAt(FLAGS_LENGTH) != ' ') {
+            return null;
+        }
+
+        String flags = line.substring(0, FLAGS_LENGTH);
+        boolean deletion = flags.startsWith(DELETING);
+        if (!deletion && ("<>ch.".indexOf(flags.charAt(0)) < 0 || "fdLDS".indexOf(flags.charAt(1)) < 0)) {
+            return null;
+        }
+
+        String rest = line.substring(FLAGS_LENGTH + 1);
+        int separator = rest.indexOf(' ');
+        if (separator < 1 || separator == rest.length() - 1) {
+            return null;
+        }
+
+        long size;
+        try {
+            size = Long.parseLong(rest.substring(0, separator).replace(",", ""));
+        } catch (NumberFormatException ex) {
+            size = -1;
+        }
+
+        return new TransferItem(flags.trim(), size, rest.substring(separator + 1), deletion);
+    }
+
+    private ItemizeParser() {
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Progress of a running job, kept on disk so that a run interrupted by a
+ * crash of the server can be resumed from its first incomplete task.
+ *
+ * The checkpoint is written after each task step and removed when the job
+ * ends, a checkpoint found at start belongs to an interrupted run. Tasks that
+ * failed are not completed and run again on resume.
+ *
+ * @author Patrik Karlström
+ */
+class JobCheckpoint {
+
+    private static final String KEY_COMPLETED = "completed";
+    private static final String KEY_JOB = "job";
+    private static final String KEY_STARTED = "started";
+    private static final String KEY_STEP = "step.";
+    private final LinkedHashSet<Long> mCompleted = new LinkedHashSet<>();
+    private final File mFile;
+    private final long mJobId;
+    private final long mStarted;
+    private final TreeMap<Long, Step> mSteps = new TreeMap<>();
+
+    static File getDirectory() {
+        return new File(JotaManager.getInstance().getDirectory(), "checkpoints");
+    }
+
+    /**
+     * Returns the checkpoints left by interrupted runs, unreadable ones are
+     * logged and skipped.
+     */
+    static List<JobCheckpoint> loadAll() {
+        ArrayList<JobCheckpoint> checkpoints = new ArrayList<>();
+        File[] files = getDirectory().listFiles((dir, name) -> name.endsWith(".properties"));
+
+        if (files != null) {
+            for (File file : files) {
+                try (InputStream inputStream = Files.newInputStream(file.toPath())) {
+                    Properties properties = new Properties();
+                    properties.load(inputStream);
+                    checkpoints.add(new JobCheckpoint(file, properties));
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(JobCheckpoint.class.getName()).log(Level.SEVERE, file.getPath(), ex);
+                }
+            }
+        }
+
+        return checkpoints;
+    }
+
+    /**
+     * Creates the checkpoint of a new run.
+     */
+    JobCheckpoint(long jobId) {
+        mJobId = jobId;
+        mStarted = System.currentTimeMillis();
+        mFile = new File(getDirectory(), jobId + ".properties");
+    }
+
+    private JobCheckpoint(File file, Properties properties) {
+        mFile = file;
+        mJobId = Long.parseLong(properties.getProperty(KEY_JOB));
+        mStarted = Long.parseLong(properties.getProperty(KEY_STARTED, "0"));
+
+        for (String id : StringUtils.split(properties.getProperty(KEY_COMPLETED, ""), ',')) {
+            mCompleted.add(Long.valueOf(id));
+        }
+
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(KEY_STEP)) {
+                mSteps.put(Long.valueOf(key.substring(KEY_STEP.length())), Step.valueOf(properties.getProperty(key)));
+            }
+        }
+    }
+
+    /**
+     * Marks the task as done, completed unless it failed.
+     */
+    synchronized void done(Task task, boolean completed) {
+        mSteps.remove(task.getId());
+        if (completed) {
+            mCompleted.add(task.getId());
+        }
+        save();
+    }
+
+    synchronized void delete() {
+        mFile.delete();
+    }
+
+    /**
+     * Returns the ids of the completed tasks.
+     */
+    synchronized Set<Long> getCompleted() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(mCompleted));
+    }
+
+    long getJobId() {
+        return mJobId;
+    }
+
+    long getStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Returns the steps the tasks were in when the run was interrupted.
+     */
+    synchronized TreeMap<Long, Step> getSteps() {
+        return new TreeMap<>(mSteps);
+    }
+
+    /**
+     * Writes the checkpoint, replacing the previous one in a single rename so
+     * that a crash leaves either of them.
+     */
+    synchronized void save() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_JOB, String.valueOf(mJobId));
+        properties.setProperty(KEY_STARTED, String.valueOf(mStarted));
+        properties.setProperty(KEY_COMPLETED, StringUtils.join(mCompleted, ","));
+        mSteps.forEach((taskId, step) -> {
+            properties.setProperty(KEY_STEP + taskId, step.name());
+        });
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            Files.createDirectories(mFile.getParentFile().toPath());
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                properties.store(outputStream, "Checkpoint of a running job");
+                outputStream.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(JobCheckpoint.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Records the step the task is entering.
+     */
+    synchronized void step(Task task, Step step) {
+        mSteps.put(task.getId(), step);
+        save();
+    }
+
+    enum Step {
+        BEFORE, RSYNC, AFTER;
+    }
+}
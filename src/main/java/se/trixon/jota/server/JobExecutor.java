@@ -15,28 +15,43 @@
  */
 package se.trixon.jota.server;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.Charset;
-import java.rmi.RemoteException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import se.trixon.almond.util.Dict;
-import se.trixon.almond.util.FileHelper;
 import se.trixon.almond.util.SystemHelper;
 import se.trixon.almond.util.Xlog;
 import se.trixon.jota.client.ui_swing.editor.module.job.JobExecutePanel;
 import se.trixon.jota.client.ui_swing.editor.module.task.TaskExecutePanel;
 import se.trixon.jota.shared.Jota;
 import se.trixon.jota.shared.ProcessEvent;
+import se.trixon.jota.shared.ProgressState;
+import se.trixon.jota.shared.TransferItem;
 import se.trixon.jota.shared.job.Job;
 import se.trixon.jota.shared.job.JobExecuteSection;
 import se.trixon.jota.shared.task.Task;
@@ -46,37 +61,178 @@ import se.trixon.jota.shared.task.TaskExecuteSection;
  *
  * @author Patrik Karlström
  */
-class JobExecutor extends Thread {
-
-    private Process mCurrentProcess;
+class JobExecutor implements Runnable {
+
+    private static final Object HISTORY_LOCK = new Object();
+    private static final long KILL_GRACE_SECONDS = 10;
+    /**
+     * Exit value of a process stopped by a timeout, as for timeout(1).
+     */
+    private static final int TIMEOUT_EXIT_VALUE = 124;
+    private final ResourceBundle mBundle = SystemHelper.getBundle(JobExecutor.class, "Bundle");
+    private final Map<Long, Set<String>> mChanges;
+    private final JobCheckpoint mCheckpoint;
+    private String mDateTimePrefix = "";
     private boolean mDryRun;
-    private final StringBuffer mErrBuffer;
+    private final EventDispatcher mEventDispatcher;
     private final Job mJob;
     private final ResourceBundle mJobExecBundle;
+    private LogAppender mLogAppender;
     private final JotaManager mJotaManager = JotaManager.getInstance();
     private long mLastRun;
-    private int mNumOfFailedTasks;
+    private final AtomicInteger mNumOfFailedTasks = new AtomicInteger();
     private ServerOptions mOptions = ServerOptions.INSTANCE;
-    private final StringBuffer mOutBuffer;
+    private final boolean mResume;
+    private final Set<Process> mProcesses = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Future<?>> mPrunes = new ConcurrentLinkedQueue<>();
     private final Server mServer;
     private final ResourceBundle mTaskExecBundle;
-    private boolean mTaskFailed;
-
-    JobExecutor(Server server, Job job, boolean dryRun) {
+    private boolean mStopped;
+    private Thread mThread;
+    private volatile boolean mTimedOut;
+
+    /**
+     * @param changes changed paths by task id, null for a full run
+     * @param resume the checkpoint of an interrupted run to resume, null to
+     * start from the first task
+     */
+    JobExecutor(Server server, Job job, boolean dryRun, Map<Long, Set<String>> changes, JobCheckpoint resume) {
         mJob = job;
         mServer = server;
         mDryRun = dryRun;
-
-        mErrBuffer = new StringBuffer();
-        mOutBuffer = new StringBuffer();
+        mChanges = changes;
+        mResume = resume != null;
+
+        // only full runs are worth resuming
+        if (mResume) {
+            mCheckpoint = resume;
+        } else if (!dryRun && changes == null) {
+            mCheckpoint = new JobCheckpoint(job.getId());
+        } else {
+            mCheckpoint = null;
+        }
 
         mJobExecBundle = SystemHelper.getBundle(JobExecutePanel.class, "Bundle");
         mTaskExecBundle = SystemHelper.getBundle(TaskExecutePanel.class, "Bundle");
+        mEventDispatcher = new EventDispatcher(server, job);
     }
 
     @Override
     public void run() {
+        // sent by the dispatcher, the caller may hold the run queue
+        send(ProcessEvent.STARTED, null);
+
+        synchronized (this) {
+            mThread = Thread.currentThread();
+            if (mStopped) {
+                mThread.interrupt();
+            }
+        }
+
+        CompletableFuture<Void> deadline = new CompletableFuture<>();
+        int timeout = mJob.getExecuteSection().getTimeout();
+        if (timeout > 0) {
+            deadline.orTimeout(timeout, TimeUnit.SECONDS).whenComplete((result, throwable) -> {
+                if (throwable instanceof TimeoutException) {
+                    timeOut(timeout);
+                }
+            });
+        }
+
+        try {
+            execute();
+        } finally {
+            deadline.complete(null);
+            synchronized (this) {
+                mThread = null;
+            }
+            Thread.interrupted();
+        }
+    }
+
+    public synchronized void stopJob() {
+        mStopped = true;
+        destroyProcesses();
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    private void timeOut(int timeout) {
+        mTimedOut = true;
+        String s = String.format(mBundle.getString("job_timeout"), Jota.nowToDateTime(), timeout);
+        Xlog.timedErr(String.format("%s: %s", mJob.getName(), s));
+        send(ProcessEvent.ERR, s);
+        stopJob();
+    }
+
+    private ExecutionPool.Ticket acquireSlot(Task task) throws InterruptedException {
+        return mServer.getExecutionPool().acquire(mJob, task, () -> {
+            String queued = String.format(mBundle.getString("job_queued"), Jota.nowToDateTime(), task.getName());
+            mLogAppender.appendOut(queued + "\n");
+            send(ProcessEvent.QUEUED, queued);
+        });
+    }
+
+    /**
+     * Waits for the snapshot prunes started by the tasks.
+     */
+    private void awaitPrunes() throws InterruptedException {
+        for (Future<?> future = mPrunes.poll(); future != null; future = mPrunes.poll()) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                log(ProcessEvent.ERR, String.format(mBundle.getString("snapshot_prune_failed"), Jota.nowToDateTime(), ex.getCause().getLocalizedMessage()));
+            }
+        }
+    }
+
+    private void appendHistoryFile(String string) {
+        synchronized (HISTORY_LOCK) {
+            try {
+                FileUtils.write(mJotaManager.getHistoryFile(), string, Charset.defaultCharset(), true);
+            } catch (IOException ex) {
+                Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    private void checkpoint(Task task, JobCheckpoint.Step step) {
+        if (mCheckpoint != null) {
+            mCheckpoint.step(task, step);
+        }
+    }
+
+    private void destroyProcesses() {
+        mProcesses.forEach((process) -> {
+            process.descendants().forEach(ProcessHandle::destroy);
+            process.destroy();
+        });
+    }
+
+    /**
+     * Asks the process and its descendants to terminate and kills them if
+     * they have not exited after a grace period.
+     */
+    private void destroyTree(Process process, CompletableFuture<Integer> future) throws InterruptedException {
+        List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+        descendants.forEach(ProcessHandle::destroy);
+        process.destroy();
+
+        try {
+            future.get(KILL_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException ex) {
+            descendants.forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+    }
+
+    private void execute() {
         mLastRun = System.currentTimeMillis();
+        mLogAppender = new LogAppender(mJob, mLastRun);
+        if (mJob.getLogMode() == 0) {
+            mDateTimePrefix = Jota.millisToDateTime(mLastRun) + " ";
+        }
         String dryRunIndicator = "";
         if (mDryRun) {
             dryRunIndicator = String.format(" (%s)", Dict.DRY_RUN.toString());
@@ -84,8 +240,17 @@ class JobExecutor extends Thread {
 
         appendHistoryFile(getHistoryLine(mJob.getId(), Dict.STARTED.toString(), dryRunIndicator));
         String s = String.format("%s %s: '%s'='%s'", Jota.nowToDateTime(), Dict.START.toString(), Dict.JOB.toString(), mJob.getName());
-        mOutBuffer.append(s).append("\n");
+        mLogAppender.appendOut(s + "\n");
         send(ProcessEvent.OUT, s);
+
+        if (mCheckpoint != null) {
+            mCheckpoint.save();
+            if (mResume) {
+                s = String.format(mBundle.getString("job_resume"), Jota.nowToDateTime(), Jota.millisToDateTime(mCheckpoint.getStarted()), mCheckpoint.getCompleted().size());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+            }
+        }
         JobExecuteSection jobExecute = mJob.getExecuteSection();
 
         try {
@@ -93,81 +258,87 @@ class JobExecutor extends Thread {
             // run before first task
             command = jobExecute.getBeforeCommand();
             if (jobExecute.isBefore() && StringUtils.isNoneEmpty(command)) {
-                run(command, jobExecute.isBeforeHaltOnError(), mJobExecBundle.getString("JobPanel.beforePanel.header"));
+                run(command, jobExecute.isBeforeHaltOnError(), mJobExecBundle.getString("JobPanel.beforePanel.header"), jobExecute.getHookTimeout());
             }
 
             runTasks();
+            awaitPrunes();
 
-            if (mNumOfFailedTasks == 0) {
+            if (mNumOfFailedTasks.get() == 0) {
                 // run after last task - if all ok
                 command = jobExecute.getAfterSuccessCommand();
                 if (jobExecute.isAfterSuccess() && StringUtils.isNoneEmpty(command)) {
-                    run(command, false, mJobExecBundle.getString("JobPanel.afterSuccessPanel.header"));
+                    run(command, false, mJobExecBundle.getString("JobPanel.afterSuccessPanel.header"), jobExecute.getHookTimeout());
                 }
             } else {
-                s = String.format(Dict.TASKS_FAILED.toString(), mNumOfFailedTasks);
-                mOutBuffer.append(s).append("\n");
+                s = String.format(Dict.TASKS_FAILED.toString(), mNumOfFailedTasks.get());
+                mLogAppender.appendOut(s + "\n");
                 send(ProcessEvent.OUT, s);
 
                 // run after last task - if any failed
                 command = jobExecute.getAfterFailureCommand();
                 if (jobExecute.isAfterFailure() && StringUtils.isNoneEmpty(command)) {
-                    run(command, false, mJobExecBundle.getString("JobPanel.afterFailurePanel.header"));
+                    run(command, false, mJobExecBundle.getString("JobPanel.afterFailurePanel.header"), jobExecute.getHookTimeout());
                 }
             }
 
             // run after last task
             command = jobExecute.getAfterCommand();
             if (jobExecute.isAfter() && StringUtils.isNoneEmpty(command)) {
-                run(command, false, mJobExecBundle.getString("JobPanel.afterPanel.header"));
+                run(command, false, mJobExecBundle.getString("JobPanel.afterPanel.header"), jobExecute.getHookTimeout());
             }
 
-            Thread.sleep(500);
-
             appendHistoryFile(getHistoryLine(mJob.getId(), Dict.DONE.toString(), dryRunIndicator));
+            mServer.getExecutionPool().finished(mJob, Dict.DONE.toString());
             s = String.format("%s %s: %s", Jota.nowToDateTime(), Dict.DONE.toString(), Dict.JOB.toString());
-            mOutBuffer.append(s).append("\n");
+            mLogAppender.appendOut(s + "\n");
             updateJobStatus(0);
-            writelogs();
+            closeLogs();
             send(ProcessEvent.FINISHED, s);
             Xlog.timedOut(String.format(Dict.JOB_FINISHED.toString(), mJob.getName()));
         } catch (InterruptedException ex) {
-            mCurrentProcess.destroy();
-            appendHistoryFile(getHistoryLine(mJob.getId(), Dict.CANCELED.toString(), dryRunIndicator));
-            updateJobStatus(99);
-            writelogs();
-            mServer.getClientCallbacks().stream().forEach((clientCallback) -> {
-                try {
-                    clientCallback.onProcessEvent(ProcessEvent.CANCELED, mJob, null, null);
-                } catch (RemoteException ex1) {
-                    // nvm Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex1);
-                }
-            });
+            destroyProcesses();
+            if (mTimedOut) {
+                // stopped by the job timeout, a failure rather than a cancel
+                appendHistoryFile(getHistoryLine(mJob.getId(), Dict.FAILED.toString(), dryRunIndicator));
+                mServer.getExecutionPool().finished(mJob, Dict.FAILED.toString());
+                updateJobStatus(1);
+                closeLogs();
+                send(ProcessEvent.FAILED, String.format("\n\n%s", Dict.JOB_FAILED.toString()));
+            } else {
+                appendHistoryFile(getHistoryLine(mJob.getId(), Dict.CANCELED.toString(), dryRunIndicator));
+                mServer.getExecutionPool().finished(mJob, Dict.CANCELED.toString());
+                updateJobStatus(99);
+                closeLogs();
+                send(ProcessEvent.CANCELED, null);
+            }
         } catch (IOException ex) {
-            writelogs();
+            mServer.getExecutionPool().finished(mJob, Dict.FAILED.toString());
+            closeLogs();
             Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
         } catch (ExecutionFailedException ex) {
             //Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
             //send(ProcessEvent.OUT, "before failed and will not continue");
             appendHistoryFile(getHistoryLine(mJob.getId(), Dict.FAILED.toString(), dryRunIndicator));
+            mServer.getExecutionPool().finished(mJob, Dict.FAILED.toString());
             updateJobStatus(1);
-            writelogs();
+            closeLogs();
             send(ProcessEvent.FAILED, String.format("\n\n%s", Dict.JOB_FAILED.toString()));
         }
 
-        mServer.getJobExecutors().remove(mJob.getId());
-    }
-
-    public void stopJob() {
-        mCurrentProcess.destroy();
-        interrupt();
-    }
+        if (mCheckpoint != null) {
+            mCheckpoint.delete();
+        }
 
-    private void appendHistoryFile(String string) {
         try {
-            FileUtils.write(mJotaManager.getHistoryFile(), string, Charset.defaultCharset(), true);
-        } catch (IOException ex) {
-            Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+            mEventDispatcher.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // only the executor that is registered may start what is queued behind it
+        if (mServer.getJobExecutors().remove(mJob.getId(), this)) {
+            mServer.startQueued(mJob.getId());
         }
     }
 
@@ -175,6 +346,51 @@ class JobExecutor extends Thread {
         return String.format("%d %s %s%s\n", id, Jota.nowToDateTime(), status, dryRunIndicator);
     }
 
+    private ArrayList<String> getRsyncCommand(Task task) {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(mOptions.getRsyncPath());
+        if (mDryRun) {
+            command.add("--dry-run");
+        }
+
+        if (task.isItemize()) {
+            command.add(ItemizeParser.OUT_FORMAT);
+        }
+
+        // keep partial files for a retry to resume
+        TaskExecuteSection taskExecute = task.getExecuteSection();
+        if (taskExecute.getRetries() > 0 && taskExecute.isRetryPartial()) {
+            boolean partial = task.getOptionCommand().stream().anyMatch((option) -> {
+                return option.startsWith("--partial") || option.matches("-[a-zA-Z]*P[a-zA-Z]*");
+            });
+            if (!partial) {
+                command.add("--partial");
+            }
+        }
+
+        return command;
+    }
+
+    /**
+     * Returns the directory that the paths printed by rsync are relative to.
+     */
+    private String getTransferBase(String source) {
+        if (source.endsWith("/")) {
+            return source;
+        } else if (source.equals(".") || source.endsWith("/.")) {
+            return source + "/";
+        }
+
+        int separator = source.lastIndexOf('/');
+        if (separator >= 0) {
+            return source.substring(0, separator + 1);
+        }
+
+        separator = source.indexOf(':');
+
+        return separator >= 0 ? source.substring(0, separator + 1) : "./";
+    }
+
     private String getRsyncErrorCode(int exitValue) {
         ResourceBundle bundle = SystemHelper.getBundle(getClass(), "ExitValues");
         String key = String.valueOf(exitValue);
@@ -182,33 +398,31 @@ class JobExecutor extends Thread {
         return bundle.containsKey(key) ? bundle.getString(key) : String.format((Dict.SYSTEM_CODE.toString()), key);
     }
 
-    private boolean run(String command, boolean stopOnError, String description) throws IOException, InterruptedException, ExecutionFailedException {
+    private boolean run(String command, boolean stopOnError, String description, int timeout) throws IOException, InterruptedException, ExecutionFailedException {
         //String s = String.format("%s %s: '%s'='%s' ('%s'=%s)", Jota.nowToDateTime(), Dict.START.toString(), description, command, Dict.STOP_ON_ERROR.toString(), StringHelper.booleanToYesNo(stopOnError));
         String s = String.format("%s %s: '%s'='%s'", Jota.nowToDateTime(), Dict.START.toString(), description, command);
-        mOutBuffer.append(s).append("\n");
+        mLogAppender.appendOut(s + "\n");
         send(ProcessEvent.OUT, s);
         boolean success = false;
 
         if (new File(command).exists()) {
             ArrayList<String> commandLine = new ArrayList<>();
             commandLine.add(command);
-            runProcess(commandLine);
-
-            Thread.sleep(100);
+            int exitValue = runProcess(commandLine, timeout);
 
             String status;
-            if (mCurrentProcess.exitValue() == 0) {
+            if (exitValue == 0) {
                 status = Dict.DONE.toString();
                 success = true;
             } else {
                 status = Dict.Dialog.ERROR.toString();
             }
             s = String.format("%s %s: '%s'", Jota.nowToDateTime(), status, description);
-            mOutBuffer.append(s).append("\n");
+            mLogAppender.appendOut(s + "\n");
             send(ProcessEvent.OUT, s);
 
-            if (stopOnError && mCurrentProcess.exitValue() != 0) {
-                String string = String.format("%s: exitValue=%d", Dict.FAILED.toString(), mCurrentProcess.exitValue());
+            if (stopOnError && exitValue != 0) {
+                String string = String.format("%s: exitValue=%d", Dict.FAILED.toString(), exitValue);
                 throw new ExecutionFailedException(string);
             }
         } else {
@@ -216,7 +430,7 @@ class JobExecutor extends Thread {
             if (stopOnError) {
                 throw new ExecutionFailedException(s);
             } else {
-                mOutBuffer.append(s).append("\n");
+                mLogAppender.appendOut(s + "\n");
                 send(ProcessEvent.ERR, s);
             }
         }
@@ -224,41 +438,417 @@ class JobExecutor extends Thread {
         return success;
     }
 
-    private void runProcess(List<String> command) throws IOException, InterruptedException {
-        ProcessBuilder processBuilder = new ProcessBuilder(command);
-        mCurrentProcess = processBuilder.start();
+    /**
+     * Syncs a local task with the built-in engine instead of rsync.
+     */
+    private int runLocalSync(Task task, Consumer<String> outConsumer) throws InterruptedException {
+        LocalSyncEngine localSyncEngine = new LocalSyncEngine(task, mDryRun, outConsumer, (line) -> {
+            log(ProcessEvent.ERR, line);
+        });
+
+        String s = String.format(mBundle.getString("engine_start"), Jota.nowToDateTime(), task.getSource(), task.getDestination());
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        ExecutionPool.Ticket ticket = acquireSlot(task);
+        try {
+            return localSyncEngine.run();
+        } finally {
+            mServer.getExecutionPool().release(ticket);
+        }
+    }
+
+    /**
+     * Deletes the snapshots of the task that the retention does not keep, in
+     * the background while the job goes on with its next tasks.
+     */
+    private void pruneSnapshots(Task task) {
+        mPrunes.add(mServer.getTaskExecutorService().submit(() -> {
+            SnapshotManager snapshotManager = new SnapshotManager(task.getDestination());
+            List<Path> expired = snapshotManager.getExpired(task.getSnapshotHourly(), task.getSnapshotDaily(), task.getSnapshotWeekly());
+            snapshotManager.delete(expired);
+
+            if (!expired.isEmpty()) {
+                String s = String.format(mBundle.getString("snapshot_pruned"), Jota.nowToDateTime(), expired.size(), task.getDestination());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+            }
+
+            return null;
+        }));
+    }
+
+    private int runPooledRsync(Task task, List<String> command, Consumer<String> outConsumer) throws IOException, InterruptedException {
+        String s = String.format("%s %s: rsync\n\n%s\n", Jota.nowToDateTime(), Dict.START.toString(), StringUtils.join(command, " "));
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        // the slot and tags first, bandwidth is only held by running processes
+        // so nothing waits for a slot or a tag while holding bandwidth
+        ExecutionPool executionPool = mServer.getExecutionPool();
+        ExecutionPool.Ticket ticket = acquireSlot(task);
+
+        try {
+            BandwidthBudget bandwidthBudget = mServer.getBandwidthBudget();
+            BandwidthBudget.Allocation allocation = bandwidthBudget.acquire(command, () -> {
+                String queued = String.format(mBundle.getString("bandwidth_queued"), Jota.nowToDateTime(), task.getName());
+                mLogAppender.appendOut(queued + "\n");
+                send(ProcessEvent.QUEUED, queued);
+            });
+
+            try {
+                if (allocation.isBudgeted()) {
+                    String limited = String.format(mBundle.getString("bandwidth_limit"), Jota.nowToDateTime(), allocation.getLimit());
+                    mLogAppender.appendOut(limited + "\n");
+                    send(ProcessEvent.OUT, limited);
+                }
+
+                TaskExecuteSection taskExecute = task.getExecuteSection();
+
+                return runProcess(BandwidthBudget.apply(command, allocation), outConsumer, taskExecute.getTimeout(), taskExecute.getStallTimeout());
+            } finally {
+                bandwidthBudget.release(allocation);
+            }
+        } finally {
+            executionPool.release(ticket);
+        }
+    }
+
+    private int runProcess(List<String> command, int timeout) throws IOException, InterruptedException {
+        return runProcess(command, (line) -> {
+            log(ProcessEvent.OUT, line);
+        }, timeout, 0);
+    }
+
+    /**
+     * Runs a process, stopping it with its descendants if it runs longer than
+     * timeout or is silent for longer than stallTimeout.
+     *
+     * @param timeout seconds, 0 for no limit
+     * @param stallTimeout seconds, 0 for no limit
+     * @return the exit value, TIMEOUT_EXIT_VALUE if stopped
+     */
+    private int runProcess(List<String> command, Consumer<String> outConsumer, int timeout, int stallTimeout) throws IOException, InterruptedException {
+        AtomicLong lastOutput = new AtomicLong(System.nanoTime());
+        ProcessRunner processRunner = new ProcessRunner((line) -> {
+            lastOutput.set(System.nanoTime());
+            outConsumer.accept(line);
+        }, (line) -> {
+            lastOutput.set(System.nanoTime());
+            log(ProcessEvent.ERR, line);
+        });
+
+        long started = System.nanoTime();
+        CompletableFuture<Integer> future = processRunner.start(command);
+        Process process = processRunner.getProcess();
+        mProcesses.add(process);
+
+        try {
+            if (timeout <= 0 && stallTimeout <= 0) {
+                return future.get();
+            }
+
+            while (true) {
+                try {
+                    return future.get(1, TimeUnit.SECONDS);
+                } catch (TimeoutException ex) {
+                    long now = System.nanoTime();
+                    String s = null;
+                    if (timeout > 0 && now - started >= TimeUnit.SECONDS.toNanos(timeout)) {
+                        s = String.format(mBundle.getString("process_timeout"), Jota.nowToDateTime(), timeout, command.get(0));
+                    } else if (stallTimeout > 0 && now - lastOutput.get() >= TimeUnit.SECONDS.toNanos(stallTimeout)) {
+                        s = String.format(mBundle.getString("process_stalled"), Jota.nowToDateTime(), stallTimeout, command.get(0));
+                    }
 
-        new ProcessLogThread(mCurrentProcess.getInputStream(), ProcessEvent.OUT).start();
-        new ProcessLogThread(mCurrentProcess.getErrorStream(), ProcessEvent.ERR).start();
+                    if (s != null) {
+                        mLogAppender.appendErr(s + "\n");
+                        send(ProcessEvent.ERR, s);
+                        destroyTree(process, future);
 
-        mCurrentProcess.waitFor();
+                        return TIMEOUT_EXIT_VALUE;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            process.descendants().forEach(ProcessHandle::destroy);
+            process.destroy();
+            throw ex;
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            mProcesses.remove(process);
+        }
     }
 
     private int runRsync(Task task) throws InterruptedException {
+        Set<String> changes = mChanges == null ? null : mChanges.get(task.getId());
+        SourceTracker sourceTracker = SourceTracker.getInstance();
+        String fingerprint = null;
+        if (changes == null && task.isSkipUnchanged() && !mDryRun && !task.isDryRun() && SourceTracker.isTrackable(task)) {
+            try {
+                fingerprint = sourceTracker.getFingerprint(task);
+            } catch (IOException ex) {
+                Xlog.timedErr(ex.getLocalizedMessage());
+            }
+
+            if (fingerprint != null && sourceTracker.isUnchanged(task, fingerprint)) {
+                String s = String.format(mBundle.getString("task_unchanged"), Jota.nowToDateTime(), task.getName());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+                appendHistoryFile(getHistoryLine(task.getId(), mBundle.getString("history_unchanged"), ""));
+
+                return 0;
+            }
+        }
+
+        ItemBatch itemBatch = new ItemBatch(task);
+        ProgressThrottle progressThrottle = new ProgressThrottle(task);
+        boolean overall = task.getOptionCommand().stream().anyMatch((option) -> option.startsWith("--info=") && option.contains("progress2"));
+        Consumer<String> outConsumer = (line) -> {
+            ProgressState progressState = ProgressParser.parse(line, overall);
+            TransferItem transferItem = task.isItemize() && progressState == null ? ItemizeParser.parse(line) : null;
+            if (progressState != null) {
+                writeLog(ProcessEvent.OUT, line);
+                progressThrottle.update(progressState);
+            } else if (transferItem == null) {
+                log(ProcessEvent.OUT, line);
+            } else {
+                writeLog(ProcessEvent.OUT, line);
+                mLogAppender.appendManifest(String.format("%s\t%s\t%d\t%s\n", task.getName(), transferItem.getFlags(), transferItem.getSize(), transferItem.getPath()));
+                itemBatch.add(transferItem);
+            }
+        };
+
+        // the tags stay held from a dry run to its apply and across the shards
+        mServer.getExecutionPool().holdTags(mJob, task);
         try {
-            ArrayList<String> command = new ArrayList<>();
-            command.add(mOptions.getRsyncPath());
-            if (mDryRun) {
-                command.add("--dry-run");
+            boolean snapshot = task.isSnapshot() && SnapshotManager.isSupported(task);
+            if (task.isSnapshot() && !snapshot) {
+                String s = String.format(mBundle.getString("snapshot_remote"), Jota.nowToDateTime(), task.getName());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+            }
+
+            // the built-in engine can not hard link against a previous snapshot
+            boolean local = task.getEngine() == Task.Engine.JAVA && !snapshot && LocalSyncEngine.isSupported(task);
+            if (task.getEngine() == Task.Engine.JAVA && !snapshot && !local) {
+                String s = String.format(mBundle.getString("engine_fallback"), Jota.nowToDateTime(), task.getName());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+            } else if (local && !LocalSyncEngine.getUnsupported(task).isEmpty()) {
+                // rsync honors options the engine would have to ignore
+                local = false;
+                String s = String.format(mBundle.getString("engine_unsupported"), Jota.nowToDateTime(), task.getName(), StringUtils.join(LocalSyncEngine.getUnsupported(task), " "));
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
             }
-            command.addAll(task.getCommand());
-            String s = String.format("%s %s: rsync\n\n%s\n", Jota.nowToDateTime(), Dict.START.toString(), StringUtils.join(command, " "));
-            mOutBuffer.append(s).append("\n");
-            send(ProcessEvent.OUT, s);
 
-            runProcess(command);
+            int exitValue;
+            if (snapshot) {
+                exitValue = runSnapshotRsync(task, outConsumer);
+            } else if (local) {
+                exitValue = runLocalSync(task, outConsumer);
+            } else if (changes != null) {
+                exitValue = runChangedRsync(task, changes, outConsumer);
+            } else if (task.isTwoPhase() && !mDryRun && !task.isDryRun()) {
+                exitValue = runTwoPhaseRsync(task, outConsumer);
+            } else if (task.getShards() > 1 && ShardPlanner.isLocal(task.getSource())) {
+                exitValue = runShardedRsync(task, outConsumer);
+            } else {
+                ArrayList<String> command = getRsyncCommand(task);
+                command.addAll(task.getCommand());
+                exitValue = runPooledRsync(task, command, outConsumer);
+            }
 
-            Thread.sleep(500);
+            itemBatch.flush();
+            progressThrottle.flush();
             send(ProcessEvent.OUT, "");
+
+            if (exitValue == 0 && fingerprint != null) {
+                sourceTracker.setSynced(task, fingerprint);
+            }
+
+            return exitValue;
         } catch (IOException ex) {
             Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
             return 9999;
+        } finally {
+            mServer.getExecutionPool().releaseTags(mJob, task);
+        }
+    }
+
+    /**
+     * Syncs the changed directories reported by the source watcher, deletions
+     * included if the task deletes since each directory is synced recursively.
+     */
+    private int runChangedRsync(Task task, Set<String> changes, Consumer<String> outConsumer) throws IOException, InterruptedException {
+        String s = String.format(mBundle.getString("watch_changes"), Jota.nowToDateTime(), StringUtils.abbreviate(StringUtils.join(changes, ", "), 200), changes.size());
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        File source = new File(task.getSource()).getAbsoluteFile();
+        String base = task.getSource().endsWith("/") ? source.getPath() : source.getParent();
+        File list = File.createTempFile("jota-changes-", ".txt");
+
+        try {
+            FileUtils.writeLines(list, Charset.defaultCharset().name(), changes, "\n");
+
+            ArrayList<String> command = getRsyncCommand(task);
+            command.addAll(task.getOptionCommand());
+            command.add("--files-from=" + list.getAbsolutePath());
+            command.add("--recursive");
+            command.add(StringUtils.appendIfMissing(base, "/"));
+            command.add(task.getDestination());
+
+            return runPooledRsync(task, command, outConsumer);
+        } finally {
+            list.delete();
+        }
+    }
+
+    private int runShardedRsync(Task task, Consumer<String> outConsumer) throws IOException, InterruptedException {
+        ShardPlanner shardPlanner = new ShardPlanner(task.getSource(), task.getShards());
+        List<File> lists;
+        try {
+            lists = shardPlanner.plan();
+        } catch (IOException ex) {
+            String s = String.format(mBundle.getString("shard_fallback"), Jota.nowToDateTime(), ex.getLocalizedMessage());
+            mLogAppender.appendOut(s + "\n");
+            send(ProcessEvent.OUT, s);
+
+            ArrayList<String> command = getRsyncCommand(task);
+            command.addAll(task.getCommand());
+
+            return runPooledRsync(task, command, outConsumer);
         }
 
-        return mCurrentProcess.exitValue();
+        String s = String.format(mBundle.getString("shard_start"), Jota.nowToDateTime(), task.getName(), lists.size());
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        RsyncStats rsyncStats = new RsyncStats();
+        ArrayList<FutureTask<Integer>> futures = new ArrayList<>();
+
+        try {
+            for (File list : lists) {
+                ArrayList<String> command = getRsyncCommand(task);
+                command.addAll(task.getOptionCommand());
+                command.add("--files-from=" + list.getAbsolutePath());
+                if (!command.contains("--stats")) {
+                    command.add("--stats");
+                }
+                command.add(shardPlanner.getBase());
+                command.add(task.getDestination());
+
+                FutureTask<Integer> future = new FutureTask<>(() -> {
+                    return runPooledRsync(task, command, (line) -> {
+                        rsyncStats.parse(line);
+                        outConsumer.accept(line);
+                    });
+                });
+                futures.add(future);
+                mServer.getTaskExecutorService().execute(future);
+            }
+
+            int exitValue = 0;
+            for (FutureTask<Integer> future : futures) {
+                int shardExitValue;
+                try {
+                    // a shard still in the queue is run here, this may be a
+                    // task thread and must not wait on the queue behind it
+                    future.run();
+                    shardExitValue = future.get();
+                } catch (ExecutionException ex) {
+                    Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                    shardExitValue = 9999;
+                }
+
+                if (exitValue == 0) {
+                    exitValue = shardExitValue;
+                }
+            }
+
+            // The shards only see listed files, deletions need a pass over the whole tree
+            boolean delete = task.getOptionCommand().stream().anyMatch((option) -> option.equals("--del") || option.startsWith("--delete"));
+            if (exitValue == 0 && delete) {
+                s = String.format(mBundle.getString("shard_delete"), Jota.nowToDateTime());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+
+                ArrayList<String> command = getRsyncCommand(task);
+                command.addAll(task.getOptionCommand());
+                command.add("--existing");
+                command.add("--ignore-existing");
+                command.add(task.getSource());
+                command.add(task.getDestination());
+                exitValue = runPooledRsync(task, command, outConsumer);
+            }
+
+            if (!rsyncStats.isEmpty()) {
+                s = String.format("%s\n%s", mBundle.getString("shard_stats"), rsyncStats.getSummary());
+                mLogAppender.appendOut(s + "\n");
+                send(ProcessEvent.OUT, s);
+            }
+
+            return exitValue;
+        } finally {
+            futures.forEach((future) -> {
+                future.cancel(true);
+            });
+            lists.forEach((list) -> {
+                list.delete();
+            });
+        }
+    }
+
+    /**
+     * Runs rsync into a new snapshot in the destination, hard linked against
+     * the previous one. Every run is a full sync, also when started by the
+     * source watcher, since the snapshot starts out empty.
+     */
+    private int runSnapshotRsync(Task task, Consumer<String> outConsumer) throws IOException, InterruptedException {
+        List<String> taskCommand = new ArrayList<>(task.getCommand());
+        List<String> options = taskCommand.subList(0, taskCommand.size() - 2);
+        String source = taskCommand.get(taskCommand.size() - 2);
+        boolean dryRun = mDryRun || task.isDryRun();
+
+        SnapshotManager snapshotManager = new SnapshotManager(task.getDestination());
+        Path latest = snapshotManager.getLatest();
+        Path partial = snapshotManager.prepare(LocalDateTime.now(), dryRun);
+
+        String s;
+        if (latest == null) {
+            s = String.format(mBundle.getString("snapshot_first"), Jota.nowToDateTime(), partial);
+        } else {
+            s = String.format(mBundle.getString("snapshot_start"), Jota.nowToDateTime(), partial, latest);
+        }
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        ArrayList<String> command = getRsyncCommand(task);
+        command.addAll(options);
+        if (latest != null) {
+            command.add("--link-dest=" + latest);
+        }
+        command.add(source);
+        command.add(partial + "/");
+
+        int exitValue = runPooledRsync(task, command, outConsumer);
+        if (exitValue == 0 && !dryRun) {
+            Path snapshot = snapshotManager.commit(partial);
+            s = String.format(mBundle.getString("snapshot_done"), Jota.nowToDateTime(), snapshot);
+            mLogAppender.appendOut(s + "\n");
+            send(ProcessEvent.OUT, s);
+        }
+
+        return exitValue;
     }
 
-    private boolean runTask(Task task) throws InterruptedException {
+    /**
+     * @return OK if the task succeeded, FAILED if it failed and HALTED if the
+     * job should not go on
+     */
+    private StepResult runTask(Task task) throws InterruptedException {
         String dryRunIndicator = "";
         if (mDryRun || task.isDryRun()) {
             dryRunIndicator = String.format(" (%s)", Dict.DRY_RUN.toString());
@@ -267,93 +857,307 @@ class JobExecutor extends Thread {
 
         String s = String.format("%s %s: %s='%s'", Jota.nowToDateTime(), Dict.START.toString(), Dict.TASK.toString(), task.getName());
         send(ProcessEvent.OUT, s);
-        mTaskFailed = false;
-        boolean doNextStep = true;
+        boolean rsyncCompleted = false;
+        boolean taskFailed = false;
+        StepResult stepResult = StepResult.OK;
         TaskExecuteSection taskExecute = task.getExecuteSection();
         String command;
 
         // run before
         command = taskExecute.getBeforeCommand();
         if (taskExecute.isBefore() && StringUtils.isNoneEmpty(command)) {
-            doNextStep = runTaskStep(command, taskExecute.isBeforeHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.beforePanel.header"));
+            checkpoint(task, JobCheckpoint.Step.BEFORE);
+            stepResult = runTaskStep(command, taskExecute.isBeforeHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.beforePanel.header"), taskExecute.getHookTimeout());
+            taskFailed |= stepResult != StepResult.OK;
         }
 
         // run rsync
-        if (doNextStep) {
+        if (stepResult != StepResult.HALTED) {
+            checkpoint(task, JobCheckpoint.Step.RSYNC);
             int exitValue = runRsync(task);
+            for (int retry = 1; retry <= taskExecute.getRetries() && taskExecute.isRetryable(exitValue); retry++) {
+                long delay = taskExecute.getRetryDelay(retry);
+                s = String.format(mBundle.getString("task_retry"), Jota.nowToDateTime(), getRsyncErrorCode(exitValue), retry, taskExecute.getRetries(), delay);
+                mLogAppender.appendErr(s + "\n");
+                send(ProcessEvent.ERR, s);
+                appendHistoryFile(getHistoryLine(task.getId(), String.format(mBundle.getString("history_retry"), exitValue, retry, taskExecute.getRetries()), dryRunIndicator));
+
+                TimeUnit.SECONDS.sleep(delay);
+                exitValue = runRsync(task);
+            }
+
             boolean rsyncSuccess = exitValue == 0;
+            rsyncCompleted = rsyncSuccess;
             s = String.format("%s %s: rsync (%s)", Jota.nowToDateTime(), Dict.DONE.toString(), getRsyncErrorCode(exitValue));
-            mOutBuffer.append(s).append("\n");
+            mLogAppender.appendOut(s + "\n");
             send(ProcessEvent.OUT, s);
+            checkpoint(task, JobCheckpoint.Step.AFTER);
             if (rsyncSuccess) {
                 // run after success
                 command = taskExecute.getAfterSuccessCommand();
                 if (taskExecute.isAfterSuccess() && StringUtils.isNoneEmpty(command)) {
-                    doNextStep = runTaskStep(command, taskExecute.isAfterSuccessHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterSuccessPanel.header"));
+                    stepResult = runTaskStep(command, taskExecute.isAfterSuccessHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterSuccessPanel.header"), taskExecute.getHookTimeout());
+                    taskFailed |= stepResult != StepResult.OK;
                 }
             } else {
                 // run after failure
                 command = taskExecute.getAfterFailureCommand();
                 if (taskExecute.isAfterFailure() && StringUtils.isNoneEmpty(command)) {
-                    doNextStep = runTaskStep(command, taskExecute.isAfterFailureHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterFailurePanel.header"));
+                    stepResult = runTaskStep(command, taskExecute.isAfterFailureHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterFailurePanel.header"), taskExecute.getHookTimeout());
+                    taskFailed |= stepResult != StepResult.OK;
                 }
             }
         }
 
-        if (doNextStep) {
+        if (stepResult != StepResult.HALTED) {
             // run after
             command = taskExecute.getAfterCommand();
             if (taskExecute.isAfter() && StringUtils.isNoneEmpty(command)) {
-                runTaskStep(command, taskExecute.isAfterHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterPanel.header"));
+                stepResult = runTaskStep(command, taskExecute.isAfterHaltOnError(), mTaskExecBundle.getString("TaskExecutePanel.afterPanel.header"), taskExecute.getHookTimeout());
+                taskFailed |= stepResult != StepResult.OK;
             }
         }
 
-        if (mTaskFailed) {
-            mNumOfFailedTasks++;
+        if (task.isSnapshot() && SnapshotManager.isSupported(task) && !mDryRun && !task.isDryRun()) {
+            pruneSnapshots(task);
+        }
+
+        if (taskFailed) {
+            mNumOfFailedTasks.incrementAndGet();
+        }
+
+        if (mCheckpoint != null) {
+            mCheckpoint.done(task, rsyncCompleted && !taskFailed);
         }
 
         appendHistoryFile(getHistoryLine(task.getId(), Dict.DONE.toString(), dryRunIndicator));
 
-        s = String.format("%s %s: %s", Jota.nowToDateTime(), Dict.DONE.toString(), Dict.TASK.toString());
+        s = String.format("%s %s: %s='%s'", Jota.nowToDateTime(), Dict.DONE.toString(), Dict.TASK.toString(), task.getName());
         send(ProcessEvent.OUT, s);
 
-        boolean doNextTask = !(mTaskFailed && taskExecute.isJobHaltOnError());
-        return doNextTask;
-    }
+        if (taskFailed && taskExecute.isJobHaltOnError()) {
+            return StepResult.HALTED;
+        }
 
-    private boolean runTaskStep(String command, boolean stopOnError, String description) throws InterruptedException {
-        boolean doNextStep = false;
+        return rsyncCompleted && !taskFailed ? StepResult.OK : StepResult.FAILED;
+    }
 
+    private StepResult runTaskStep(String command, boolean stopOnError, String description, int timeout) throws InterruptedException {
         try {
-            if (run(command, stopOnError, description)) {
+            if (run(command, stopOnError, description, timeout)) {
+                return StepResult.OK;
             } else {
-                mTaskFailed = true;
+                return StepResult.FAILED;
             }
-            doNextStep = true;
         } catch (IOException | ExecutionFailedException ex) {
-            mTaskFailed = true;
             Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+            return StepResult.HALTED;
         }
+    }
+
+    /**
+     * Runs rsync as a dry run first and then transfers and deletes exactly
+     * what it planned, without a second scan of the trees.
+     */
+    private int runTwoPhaseRsync(Task task, Consumer<String> outConsumer) throws IOException, InterruptedException {
+        List<String> taskCommand = new ArrayList<>(task.getCommand());
+        List<String> options = taskCommand.subList(0, taskCommand.size() - 2);
+        String source = taskCommand.get(taskCommand.size() - 2);
+        String destination = taskCommand.get(taskCommand.size() - 1);
+
+        String s = String.format(mBundle.getString("two_phase_plan"), Jota.nowToDateTime(), task.getName());
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        // the out format goes last to override any format among the options
+        ArrayList<String> command = new ArrayList<>();
+        command.add(mOptions.getRsyncPath());
+        command.add("--dry-run");
+        command.add("--8-bit-output");
+        command.addAll(options);
+        command.add(ItemizeParser.OUT_FORMAT);
+        command.add(source);
+        command.add(destination);
+
+        ArrayList<TransferItem> plan = new ArrayList<>();
+        int exitValue = runPooledRsync(task, command, (line) -> {
+            TransferItem transferItem = ProgressParser.parse(line, false) == null ? ItemizeParser.parse(line) : null;
+            if (transferItem == null) {
+                log(ProcessEvent.OUT, line);
+            } else {
+                writeLog(ProcessEvent.OUT, line);
+                plan.add(transferItem);
+            }
+        });
+
+        if (exitValue != 0) {
+            return exitValue;
+        }
+
+        // rsync escapes control characters as \#ooo, such names can not be listed back
+        if (plan.stream().anyMatch((transferItem) -> transferItem.getPath().contains("\\#"))) {
+            s = String.format(mBundle.getString("two_phase_fallback"), Jota.nowToDateTime(), task.getName());
+            mLogAppender.appendOut(s + "\n");
+            send(ProcessEvent.OUT, s);
+
+            command = getRsyncCommand(task);
+            command.addAll(taskCommand);
 
-        return doNextStep;
+            return runPooledRsync(task, command, outConsumer);
+        }
+
+        long numOfDeletions = plan.stream().filter((transferItem) -> transferItem.isDeletion()).count();
+        s = String.format(mBundle.getString("two_phase_planned"), Jota.nowToDateTime(), plan.size(), numOfDeletions);
+        mLogAppender.appendOut(s + "\n");
+        send(ProcessEvent.OUT, s);
+
+        if (task.getMaxDeletions() >= 0 && numOfDeletions > task.getMaxDeletions()) {
+            s = String.format(mBundle.getString("two_phase_aborted"), Jota.nowToDateTime(), numOfDeletions, task.getMaxDeletions());
+            mLogAppender.appendErr(s + "\n");
+            send(ProcessEvent.ERR, s);
+
+            return 9999;
+        }
+
+        if (plan.isEmpty()) {
+            return 0;
+        }
+
+        File list = File.createTempFile("jota-plan-", ".txt");
+
+        try {
+            ArrayList<String> paths = new ArrayList<>();
+            plan.forEach((transferItem) -> {
+                paths.add(transferItem.getPath());
+            });
+            FileUtils.writeLines(list, Charset.defaultCharset().name(), paths, "\n");
+
+            // planned deletions are listed and deleted as missing, the delete
+            // options would only act on the listed directories
+            command = getRsyncCommand(task);
+            options.stream().filter((option) -> !option.equals("--del") && !option.startsWith("--delete")).forEach(command::add);
+            command.add("--files-from=" + list.getAbsolutePath());
+            if (numOfDeletions > 0) {
+                command.add("--delete-missing-args");
+                command.add("--force");
+            }
+            command.add(getTransferBase(source));
+            command.add(destination);
+
+            return runPooledRsync(task, command, outConsumer);
+        } finally {
+            list.delete();
+        }
     }
 
     private void runTasks() throws InterruptedException {
-        for (Task task : mJob.getTasks()) {
-            if (!runTask(task)) {
-                break;
+        ArrayList<Task> tasks = new ArrayList<>(mJob.getTasks());
+        if (mChanges != null) {
+            tasks.removeIf((task) -> !mChanges.containsKey(task.getId()));
+        }
+
+        if (mResume) {
+            // dependencies on completed tasks are met since they are not in the graph
+            Set<Long> completed = mCheckpoint.getCompleted();
+            tasks.removeIf((task) -> completed.contains(task.getId()));
+        }
+
+        TaskGraph taskGraph = new TaskGraph(tasks);
+        int concurrency = Math.max(1, mJob.getTaskConcurrency());
+
+        if (concurrency == 1 && !taskGraph.hasDependencies()) {
+            for (Task task : tasks) {
+                if (runTask(task) == StepResult.HALTED) {
+                    break;
+                }
             }
+
+            return;
         }
-    }
 
-    private synchronized void send(ProcessEvent processEvent, String line) {
-        mServer.getClientCallbacks().stream().forEach((clientCallback) -> {
-            try {
-                clientCallback.onProcessEvent(processEvent, mJob, null, line);
-            } catch (RemoteException ex) {
-                // nvm Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+        ExecutorCompletionService<StepResult> completionService = new ExecutorCompletionService<>(mServer.getTaskExecutorService());
+        HashMap<Future<StepResult>, Task> runningTasks = new HashMap<>();
+        boolean halted = false;
+
+        try {
+            while (true) {
+                if (!halted) {
+                    for (Task task : taskGraph.pollReady(concurrency - runningTasks.size())) {
+                        runningTasks.put(completionService.submit(() -> runTask(task)), task);
+                    }
+                }
+
+                if (runningTasks.isEmpty()) {
+                    break;
+                }
+
+                Future<StepResult> future = completionService.take();
+                Task task = runningTasks.remove(future);
+                StepResult stepResult;
+
+                try {
+                    stepResult = future.get();
+                } catch (ExecutionException ex) {
+                    stepResult = StepResult.HALTED;
+                    mNumOfFailedTasks.incrementAndGet();
+                    Logger.getLogger(JobExecutor.class.getName()).log(Level.SEVERE, null, ex);
+                }
+
+                taskGraph.setDone(task, stepResult == StepResult.OK);
+                halted |= stepResult == StepResult.HALTED;
+                if (!halted) {
+                    for (Task skipped : taskGraph.pollSkipped()) {
+                        skipTask(skipped);
+                    }
+                }
             }
-        });
+        } finally {
+            runningTasks.keySet().forEach((future) -> {
+                future.cancel(true);
+            });
+        }
+
+        if (!halted && taskGraph.hasPending()) {
+            List<Task> unresolved = taskGraph.getPending();
+            ArrayList<String> names = new ArrayList<>();
+            unresolved.forEach((task) -> {
+                names.add(task.getName());
+            });
+
+            String s = String.format(mBundle.getString("task_dependency_cycle"), StringUtils.join(names, ", "));
+            mLogAppender.appendOut(s + "\n");
+            send(ProcessEvent.ERR, s);
+            mNumOfFailedTasks.addAndGet(unresolved.size());
+        }
+    }
+
+    private void log(ProcessEvent processEvent, String line) {
+        writeLog(processEvent, line);
+        send(processEvent, line);
+    }
+
+    private void send(ProcessEvent processEvent, Object object) {
+        send(processEvent, null, object);
+    }
+
+    private void send(ProcessEvent processEvent, Task task, Object object) {
+        mEventDispatcher.add(processEvent, task, object);
+    }
+
+    /**
+     * Records a task that is not run since a task it depends on failed.
+     */
+    private void skipTask(Task task) {
+        String dryRunIndicator = "";
+        if (mDryRun || task.isDryRun()) {
+            dryRunIndicator = String.format(" (%s)", Dict.DRY_RUN.toString());
+        }
+
+        String s = String.format(mBundle.getString("task_dependency_failed"), Jota.nowToDateTime(), task.getName());
+        mLogAppender.appendErr(s + "\n");
+        send(ProcessEvent.ERR, s);
+        appendHistoryFile(getHistoryLine(task.getId(), mBundle.getString("history_dependency_failed"), dryRunIndicator));
+        mNumOfFailedTasks.incrementAndGet();
     }
 
     private void updateJobStatus(int exitCode) {
@@ -367,53 +1171,121 @@ class JobExecutor extends Thread {
         }
     }
 
-    private void writelogs() {
-        File directory = new File(ServerOptions.INSTANCE.getLogDir());
-        String jobName = FileHelper.replaceInvalidChars(mJob.getName());
-        String outFile = String.format("%s.log", jobName);
-        String errFile = String.format("%s.err", jobName);
+    private void writeLog(ProcessEvent processEvent, String line) {
+        String string = String.format("%s%s%s", mDateTimePrefix, line, System.lineSeparator());
+        if (mJob.isLogSeparateErrors()) {
+            if (mJob.isLogOutput() && processEvent == ProcessEvent.OUT) {
+                mLogAppender.appendOut(string);
+            } else if (mJob.isLogErrors() && processEvent == ProcessEvent.ERR) {
+                mLogAppender.appendErr(string);
+            }
+        } else {
+            if (mJob.isLogOutput() && processEvent == ProcessEvent.OUT) {
+                mLogAppender.appendOut(string);
+            } else if (mJob.isLogErrors() && processEvent == ProcessEvent.ERR) {
+                mLogAppender.appendOut(string);
+            }
+        }
+    }
+
+    private void closeLogs() {
+        send(ProcessEvent.OUT, "");
 
-        int logMode = mJob.getLogMode();
-        if (logMode == 2) {
-            outFile = String.format("%s %s.log", jobName, mJob.getLastRunDateTime("", mLastRun));
-            errFile = String.format("%s %s.err", jobName, mJob.getLastRunDateTime("", mLastRun));
+        StringBuilder builder = new StringBuilder();
+        for (File file : mLogAppender.close()) {
+            if (builder.length() > 0) {
+                builder.append("\n");
+            }
+            String message = file.getAbsolutePath();
+            Xlog.timedOut(message);
+            builder.append(String.format("%s:%s", SystemHelper.getHostname(), message));
         }
 
-        boolean append = logMode == 0;
+        if (builder.length() > 0) {
+            builder.insert(0, String.format("%s\n", Dict.SAVE_LOG.toString()));
+            send(ProcessEvent.OUT, builder.toString());
+        }
+    }
 
-        try {
-            FileUtils.forceMkdir(directory);
-            File file = new File(directory, outFile);
-            send(ProcessEvent.OUT, "");
+    /**
+     * Collects transfer items and sends them in batches.
+     */
+    private class ItemBatch {
 
-            StringBuilder builder = new StringBuilder();
-            if (mJob.isLogOutput() || mJob.isLogErrors() && !mJob.isLogSeparateErrors()) {
-                FileUtils.writeStringToFile(file, mOutBuffer.toString(), "utf-8", append);
-                String message = file.getAbsolutePath();
-                Xlog.timedOut(message);
-                builder.append(String.format("%s:%s", SystemHelper.getHostname(), message));
+        private static final int MAX_DELAY = 250;
+        private static final int MAX_SIZE = 500;
+        private ArrayList<TransferItem> mItems = new ArrayList<>();
+        private long mLastFlush = System.currentTimeMillis();
+        private final Task mTask;
+
+        ItemBatch(Task task) {
+            mTask = task;
+        }
+
+        synchronized void add(TransferItem transferItem) {
+            mItems.add(transferItem);
+            if (mItems.size() >= MAX_SIZE || System.currentTimeMillis() - mLastFlush >= MAX_DELAY) {
+                flush();
             }
+        }
 
-            if (mJob.isLogErrors() && mJob.isLogSeparateErrors()) {
-                if (builder.length() > 0) {
-                    builder.append("\n");
-                }
-                file = new File(directory, errFile);
-                FileUtils.writeStringToFile(file, mErrBuffer.toString(), "utf-8", append);
-                String message = file.getAbsolutePath();
-                Xlog.timedOut(message);
-                builder.append(String.format("%s:%s", SystemHelper.getHostname(), message));
+        synchronized void flush() {
+            if (!mItems.isEmpty()) {
+                send(ProcessEvent.ITEMS, mTask, mItems);
+                mItems = new ArrayList<>();
             }
 
-            if (builder.length() > 0) {
-                builder.insert(0, String.format("%s\n", Dict.SAVE_LOG.toString()));
-                send(ProcessEvent.OUT, builder.toString());
+            mLastFlush = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Sends the latest progress of a task at most 4 times per second. A state
+     * held back is sent when the interval has passed, also if no further
+     * progress arrives.
+     */
+    private class ProgressThrottle {
+
+        private static final int MIN_INTERVAL = 250;
+        private boolean mFlushScheduled;
+        private long mLastSend;
+        private ProgressState mPending;
+        private final Task mTask;
+
+        ProgressThrottle(Task task) {
+            mTask = task;
+        }
+
+        synchronized void flush() {
+            if (mPending != null) {
+                send(ProcessEvent.PROGRESS, mTask, mPending);
+                mPending = null;
+            }
+
+            mLastSend = System.currentTimeMillis();
+        }
+
+        synchronized void update(ProgressState progressState) {
+            mPending = progressState;
+            long delay = mLastSend + MIN_INTERVAL - System.currentTimeMillis();
+            if (delay <= 0) {
+                flush();
+            } else if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                CompletableFuture.runAsync(() -> {
+                    synchronized (this) {
+                        mFlushScheduled = false;
+                        flush();
+                    }
+                }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
             }
-        } catch (IOException ex) {
-            Xlog.timedErr(ex.getLocalizedMessage());
         }
     }
 
+    private enum StepResult {
+        OK, FAILED, HALTED;
+    }
+
     class ExecutionFailedException extends Exception {
 
         public ExecutionFailedException() {
@@ -422,7 +1294,7 @@ class JobExecutor extends Thread {
 
         public ExecutionFailedException(String message) {
             super(message);
-            mOutBuffer.append(message).append("\n");
+            mLogAppender.appendOut(message + "\n");
             send(ProcessEvent.OUT, message);
         }
 
@@ -438,49 +1310,4 @@ class JobExecutor extends Thread {
             super(message, cause, enableSuppression, writableStackTrace);
         }
     }
-
-    class ProcessLogThread extends Thread {
-
-        private final InputStream mInputStream;
-        private final ProcessEvent mProcessEvent;
-        private String mDateTimePrefix = "";
-
-        public ProcessLogThread(InputStream inputStream, ProcessEvent processEvent) {
-            mInputStream = inputStream;
-            mProcessEvent = processEvent;
-            if (mJob.getLogMode() == 0) {
-                mDateTimePrefix = Jota.millisToDateTime(mLastRun) + " ";
-            }
-        }
-
-        @Override
-        public void run() {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(mInputStream), 1);
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    String string = String.format("%s%s%s", mDateTimePrefix, line, System.lineSeparator());
-                    if (mJob.isLogSeparateErrors()) {
-                        if (mJob.isLogOutput() && mProcessEvent == ProcessEvent.OUT) {
-                            mOutBuffer.append(string);
-                        } else if (mJob.isLogErrors() && mProcessEvent == ProcessEvent.ERR) {
-                            mErrBuffer.append(string);
-                        }
-                    } else if (!mJob.isLogSeparateErrors()) {
-                        if (mJob.isLogOutput() && mProcessEvent == ProcessEvent.OUT) {
-                            mOutBuffer.append(string);
-                        } else if (mJob.isLogErrors() && mProcessEvent == ProcessEvent.ERR) {
-                            mOutBuffer.append(string);
-                        }
-                    }
-
-                    //mOutBuffer.append(line).append("\n");
-                    send(mProcessEvent, line);
-                }
-            } catch (IOException e) {
-                Xlog.timedErr(e.getLocalizedMessage());
-            }
-        }
-    }
 }
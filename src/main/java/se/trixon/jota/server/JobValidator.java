@@ -18,7 +18,9 @@ package se.trixon.jota.server;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.ResourceBundle;
+import org.apache.commons.lang3.StringUtils;
 import se.trixon.almond.util.SystemHelper;
 import se.trixon.almond.util.Dict;
 import se.trixon.jota.client.ui_swing.editor.module.job.JobExecutePanel;
@@ -49,6 +51,7 @@ public class JobValidator implements Serializable {
         mHtmlBuilder.append("<h1>").append(mJob.getName()).append("</h1>");
         validateExecutors();
         validateTasks();
+        validateDependencies();
     }
 
     public String getSummary() {
@@ -72,6 +75,20 @@ public class JobValidator implements Serializable {
         mStringBuilder.append(header).append(message).append("\n");
     }
 
+    private void validateDependencies() {
+        TaskGraph taskGraph = new TaskGraph(mJob.getTasks());
+        if (taskGraph.isUnresolvable()) {
+            ArrayList<String> names = new ArrayList<>();
+            taskGraph.getPending().forEach((task) -> {
+                names.add(task.getName());
+            });
+
+            ResourceBundle bundle = SystemHelper.getBundle(JobValidator.class, "Bundle");
+            mInvalid = true;
+            addSummary(Dict.Dialog.ERROR.toString(), String.format(bundle.getString("task_dependency_cycle"), StringUtils.join(names, ", ")));
+        }
+    }
+
     private void validateExecutor(boolean active, String command, String key) {
         ResourceBundle bundle = SystemHelper.getBundle(JobExecutePanel.class, "Bundle");
         File file = new File(command);
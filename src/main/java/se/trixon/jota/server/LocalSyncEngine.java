@@ -0,0 +1,802 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Syncs a local source to a local destination without rsync.
+ *
+ * The engine works like rsync -rlpt with its quick check, a file is copied
+ * when its size or modification time differs. Both trees are walked in
+ * parallel and files are copied in parallel with FileChannel.transferTo, into
+ * a temporary file that is renamed into place. Owners, groups, hard links,
+ * devices and special files are not synced, so a task that asks for them with
+ * -a, -o, -g or -D is left to rsync, like a task with any other option the
+ * engine can not honor, see getUnsupported.
+ *
+ * The output is written in the formats read for rsync, itemized lines if the
+ * task itemizes, --info=progress2 lines and --stats. The exit values are
+ * those of rsync, 23 if anything failed and 24 if source files vanished.
+ *
+ * @author Patrik Karlström
+ */
+class LocalSyncEngine {
+
+    private static final int EXIT_PARTIAL = 23;
+    private static final int EXIT_VANISHED = 24;
+    private static final Set<String> OPTIONS = new HashSet<>(Arrays.asList(
+            "--8-bit-output",
+            "--compress",
+            "--del",
+            "--delete",
+            "--delete-after",
+            "--delete-before",
+            "--delete-delay",
+            "--delete-during",
+            "--delete-excluded",
+            "--dry-run",
+            "--human-readable",
+            "--itemize-changes",
+            "--links",
+            "--partial",
+            "--perms",
+            "--progress",
+            "--quiet",
+            "--recursive",
+            "--stats",
+            "--times",
+            "--verbose",
+            "--whole-file"
+    ));
+    private static final String[] OPTION_PREFIXES = {"--bwlimit", "--contimeout=", "--exclude-from=", "--exclude=", "--include-from=", "--include=", "--info=", "--out-format=", "--partial-dir=", "--timeout="};
+    private static final String SHORT_OPTIONS = "PWhilnpqrtvz";
+    private volatile boolean mCancelled;
+    private final ConcurrentLinkedQueue<Entry> mCopies = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Entry> mDeletions = new ConcurrentLinkedQueue<>();
+    private boolean mDelete;
+    private boolean mDeleteExcluded;
+    private final ConcurrentLinkedQueue<Entry> mDirectories = new ConcurrentLinkedQueue<>();
+    private final boolean mDryRun;
+    private final Consumer<String> mErrConsumer;
+    private boolean mItemize;
+    private final AtomicInteger mNumOfCreated = new AtomicInteger();
+    private final AtomicInteger mNumOfDeleted = new AtomicInteger();
+    private final AtomicInteger mNumOfErrors = new AtomicInteger();
+    private final AtomicInteger mNumOfFiles = new AtomicInteger();
+    private final AtomicInteger mNumOfTransferred = new AtomicInteger();
+    private final AtomicInteger mNumOfVanished = new AtomicInteger();
+    private final Consumer<String> mOutConsumer;
+    private boolean mOverall;
+    private final String mPrefix;
+    private final ArrayList<Rule> mRules = new ArrayList<>();
+    private final Path mSource;
+    private boolean mStats;
+    private final Path mTarget;
+    private final Task mTask;
+    private final AtomicLong mTotalSize = new AtomicLong();
+    private final AtomicLong mTransferredSize = new AtomicLong();
+    private boolean mVerbose;
+
+    /**
+     * Returns the options of the task that the engine does not support, the
+     * task is run by rsync if there are any.
+     */
+    static List<String> getUnsupported(Task task) {
+        ArrayList<String> unsupported = new ArrayList<>();
+
+        for (String option : task.getOptionCommand()) {
+            if (StringUtils.isBlank(option)) {
+                continue;
+            }
+
+            if (option.matches("-[a-zA-Z]+")) {
+                for (char c : option.substring(1).toCharArray()) {
+                    if (SHORT_OPTIONS.indexOf(c) < 0) {
+                        unsupported.add("-" + c);
+                    }
+                }
+            } else if (!OPTIONS.contains(option) && !StringUtils.startsWithAny(option, OPTION_PREFIXES)) {
+                unsupported.add(option);
+            }
+        }
+
+        return unsupported;
+    }
+
+    /**
+     * Returns true if both the source and the destination of the task are
+     * local paths.
+     */
+    static boolean isSupported(Task task) {
+        return isLocalDestination(task.getDestination()) && ShardPlanner.isLocal(task.getSource());
+    }
+
+    /**
+     * Returns true if the destination is a local path, not a host or an rsync
+     * daemon.
+     */
+    static boolean isLocalDestination(String destination) {
+        destination = StringUtils.defaultString(destination);
+        int colon = destination.indexOf(':');
+        int slash = destination.indexOf('/');
+        boolean remote = destination.startsWith("rsync://") || (colon >= 0 && (slash < 0 || colon < slash));
+
+        return !SystemUtils.IS_OS_WINDOWS && !remote && !destination.isEmpty();
+    }
+
+    LocalSyncEngine(Task task, boolean dryRun, Consumer<String> outConsumer, Consumer<String> errConsumer) {
+        mTask = task;
+        mOutConsumer = outConsumer;
+        mErrConsumer = errConsumer;
+        mSource = new File(task.getSource()).toPath().toAbsolutePath().normalize();
+
+        Path destination = new File(task.getDestination()).toPath().toAbsolutePath().normalize();
+        if (task.getSource().endsWith("/")) {
+            mTarget = destination;
+            mPrefix = "";
+        } else {
+            mTarget = destination.resolve(mSource.getFileName());
+            mPrefix = mSource.getFileName() + "/";
+        }
+
+        mItemize = task.isItemize();
+        boolean dryRunOption = parseOptions(task.getOptionCommand());
+        mDryRun = dryRun || dryRunOption;
+    }
+
+    /**
+     * Runs the sync.
+     *
+     * @return the exit value, as for rsync
+     * @throws InterruptedException if interrupted, the sync is stopped
+     */
+    int run() throws InterruptedException {
+        int parallelism = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            BasicFileAttributes sourceAttributes = Files.readAttributes(mSource, BasicFileAttributes.class);
+            BasicFileAttributes targetAttributes = readAttributes(mTarget);
+            Path root = mSource.relativize(mSource);
+            plan(root, targetAttributes, sourceAttributes);
+
+            // a single file source is planned above, there is nothing to walk
+            if (sourceAttributes.isDirectory()) {
+                pool.submit(new Walker(root, targetAttributes != null && targetAttributes.isDirectory())).get();
+            }
+            if (mTask.getMaxDeletions() >= 0 && mTask.isTwoPhase() && mDeletions.size() > mTask.getMaxDeletions()) {
+                error(String.format("aborted, %d planned deletions exceed the limit of %d", mDeletions.size(), mTask.getMaxDeletions()));
+
+                return EXIT_PARTIAL;
+            }
+
+            // deepest first, children before their directory
+            mDeletions.stream().sorted((a, b) -> b.mPath.compareTo(a.mPath)).forEachOrdered(this::delete);
+            mDirectories.stream().filter((entry) -> entry.mCreate).sorted().forEachOrdered(this::createDirectory);
+
+            long size = mCopies.stream().filter((entry) -> !entry.mLink).mapToLong((entry) -> entry.mSize).sum();
+            Progress progress = new Progress(size, (int) mCopies.stream().filter((entry) -> !entry.mLink).count());
+            pool.submit(() -> {
+                mCopies.parallelStream().forEach((entry) -> {
+                    copy(entry, progress);
+                });
+            }).get();
+
+            // restore the times of directories modified by the sync, deepest first
+            TreeMap<String, Entry> directories = new TreeMap<>(Collections.reverseOrder());
+            mDirectories.forEach((entry) -> {
+                directories.put(entry.mPath, entry);
+            });
+            Stream.concat(mCopies.stream(), mDeletions.stream()).forEach((entry) -> {
+                Path parent = Path.of(entry.mPath).getParent();
+                Path relative = parent == null ? root : parent;
+                directories.computeIfAbsent(relative.toString(), (k) -> new Entry(relative, null, null, 0, false, false));
+            });
+            directories.values().forEach(this::updateDirectory);
+        } catch (InterruptedException ex) {
+            mCancelled = true;
+            throw ex;
+        } catch (ExecutionException ex) {
+            error(String.valueOf(ex.getCause()));
+            mNumOfErrors.incrementAndGet();
+        } catch (IOException ex) {
+            error(ex.toString());
+            mNumOfErrors.incrementAndGet();
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+
+        if (mStats) {
+            out(String.format("Number of files: %,d", mNumOfFiles.get()));
+            out(String.format("Number of created files: %,d", mNumOfCreated.get()));
+            out(String.format("Number of deleted files: %,d", mNumOfDeleted.get()));
+            out(String.format("Number of regular files transferred: %,d", mNumOfTransferred.get()));
+            out(String.format("Total file size: %,d bytes", mTotalSize.get()));
+            out(String.format("Total transferred file size: %,d bytes", mTransferredSize.get()));
+        }
+
+        if (mVerbose) {
+            out(String.format("total size is %,d  transferred %,d%s", mTotalSize.get(), mTransferredSize.get(), mDryRun ? " (DRY RUN)" : ""));
+        }
+
+        if (mNumOfErrors.get() > 0) {
+            return EXIT_PARTIAL;
+        } else if (mNumOfVanished.get() > 0) {
+            return EXIT_VANISHED;
+        } else {
+            return 0;
+        }
+    }
+
+    private void copy(Entry entry, Progress progress) {
+        if (mCancelled) {
+            return;
+        }
+
+        item(entry);
+        Path source = mSource.resolve(entry.mPath);
+        Path target = mTarget.resolve(entry.mPath);
+
+        if (!mDryRun) {
+            Path temp = target.resolveSibling(String.format(".%s.%06d", target.getFileName(), ThreadLocalRandom.current().nextInt(1000000)));
+
+            try {
+                if (entry.mLink) {
+                    Files.createSymbolicLink(temp, Files.readSymbolicLink(source));
+                } else {
+                    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                            FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        long size = in.size();
+                        long position = 0;
+                        while (position < size) {
+                            long transferred = in.transferTo(position, size - position, out);
+                            if (transferred <= 0) {
+                                break;
+                            }
+                            position += transferred;
+                        }
+                    }
+
+                    setAttributes(source, temp);
+                }
+
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException ex) {
+                deleteQuietly(temp);
+                if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                    error(ex.toString());
+                    mNumOfErrors.incrementAndGet();
+                } else {
+                    error(String.format("file has vanished: \"%s\"", source));
+                    mNumOfVanished.incrementAndGet();
+                }
+
+                return;
+            } catch (IOException ex) {
+                deleteQuietly(temp);
+                error(ex.toString());
+                mNumOfErrors.incrementAndGet();
+
+                return;
+            }
+        }
+
+        if (!entry.mLink) {
+            mNumOfTransferred.incrementAndGet();
+            mTransferredSize.addAndGet(entry.mSize);
+            progress.update(entry.mSize);
+        }
+    }
+
+    private void createDirectory(Entry entry) {
+        item(entry);
+        if (!mDryRun) {
+            try {
+                Files.createDirectories(mTarget.resolve(entry.mPath));
+            } catch (IOException ex) {
+                error(ex.toString());
+                mNumOfErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private void delete(Entry entry) {
+        if (mVerbose || mItemize) {
+            out(mItemize ? String.format("%-11s %d %s", "*deleting", entry.mSize, entry.mDisplay) : "deleting " + entry.mDisplay);
+        }
+
+        if (!mDryRun) {
+            try {
+                Files.deleteIfExists(mTarget.resolve(entry.mPath));
+            } catch (IOException ex) {
+                error(ex.toString());
+                mNumOfErrors.incrementAndGet();
+
+                return;
+            }
+        }
+        mNumOfDeleted.incrementAndGet();
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            //nvm
+        }
+    }
+
+    private String display(Path relative, boolean directory) {
+        if (!directory && relative.toString().isEmpty()) {
+            // a single file source
+            return StringUtils.removeEnd(mPrefix, "/");
+        }
+
+        String display = mPrefix + relative.toString();
+        if (display.isEmpty()) {
+            return "./";
+        }
+
+        return directory && !display.endsWith("/") ? display + "/" : display;
+    }
+
+    private synchronized void error(String message) {
+        mErrConsumer.accept(String.format("jotasync: %s", message));
+    }
+
+    private boolean isExcluded(Path relative, boolean directory) {
+        String path = StringUtils.removeEnd(mPrefix + relative.toString(), "/");
+        String name = relative.getFileName() == null ? "" : relative.getFileName().toString();
+
+        for (Rule rule : mRules) {
+            if (rule.matches(path, name, directory)) {
+                return !rule.mInclude;
+            }
+        }
+
+        return false;
+    }
+
+    private void item(Entry entry) {
+        if (mItemize) {
+            out(String.format("%s %d %s", entry.mFlags, entry.mSize, entry.mDisplay));
+        } else if (mVerbose) {
+            out(entry.mDisplay);
+        }
+    }
+
+    private synchronized void out(String line) {
+        mOutConsumer.accept(line);
+    }
+
+    private boolean parseOptions(List<String> options) {
+        boolean dryRun = false;
+
+        for (String option : options) {
+            if (StringUtils.isBlank(option)) {
+                continue;
+            }
+
+            if (option.matches("-[a-zA-Z]+")) {
+                dryRun |= option.indexOf('n') > 0;
+                mVerbose |= option.indexOf('v') > 0;
+                mItemize |= option.indexOf('i') > 0;
+            } else if (OPTIONS.contains(option) || StringUtils.startsWithAny(option, OPTION_PREFIXES)) {
+                dryRun |= option.equals("--dry-run");
+                mVerbose |= option.equals("--verbose");
+                mItemize |= option.equals("--itemize-changes");
+                mStats |= option.equals("--stats");
+                mDelete |= option.equals("--del") || option.startsWith("--delete");
+                mDeleteExcluded |= option.equals("--delete-excluded");
+                mOverall |= option.startsWith("--info=") && option.contains("progress2");
+
+                if (option.startsWith("--exclude=")) {
+                    mRules.add(new Rule(StringUtils.substringAfter(option, "="), false));
+                } else if (option.startsWith("--include=")) {
+                    mRules.add(new Rule(StringUtils.substringAfter(option, "="), true));
+                } else if (option.startsWith("--exclude-from=") || option.startsWith("--include-from=")) {
+                    readRules(StringUtils.substringAfter(option, "="), option.startsWith("--include-from="));
+                }
+            }
+        }
+
+        return dryRun;
+    }
+
+    private void plan(Path relative, BasicFileAttributes targetAttributes, BasicFileAttributes sourceAttributes) throws IOException {
+        Path source = mSource.resolve(relative);
+        Path target = mTarget.resolve(relative);
+
+        if (sourceAttributes == null) {
+            // the target is extraneous, list its tree deepest last for the deletions
+            if (targetAttributes.isDirectory()) {
+                try (Stream<Path> stream = Files.walk(target)) {
+                    stream.forEach((path) -> {
+                        BasicFileAttributes attributes = readAttributes(path);
+                        if (attributes != null) {
+                            Path entryPath = mTarget.relativize(path);
+                            mDeletions.add(new Entry(entryPath, display(entryPath, attributes.isDirectory()), null, attributes.isDirectory() ? 0 : attributes.size(), false, false));
+                        }
+                    });
+                }
+            } else {
+                mDeletions.add(new Entry(relative, display(relative, false), null, targetAttributes.size(), false, false));
+            }
+
+            return;
+        }
+
+        mNumOfFiles.incrementAndGet();
+        boolean targetDirectory = targetAttributes != null && targetAttributes.isDirectory();
+        if (targetAttributes != null && sourceAttributes.isDirectory() != targetDirectory) {
+            // replaced by another type
+            plan(relative, targetAttributes, null);
+            targetAttributes = null;
+        }
+
+        String display = display(relative, sourceAttributes.isDirectory());
+        if (sourceAttributes.isDirectory()) {
+            if (targetAttributes == null) {
+                mDirectories.add(new Entry(relative, display, "cd+++++++++", sourceAttributes.size(), true, false));
+                mNumOfCreated.incrementAndGet();
+            } else if (!isSameTime(sourceAttributes, targetAttributes)) {
+                mDirectories.add(new Entry(relative, display, ".d..t......", sourceAttributes.size(), false, false));
+            }
+        } else if (sourceAttributes.isSymbolicLink()) {
+            Path link = Files.readSymbolicLink(source);
+            if (targetAttributes == null || !targetAttributes.isSymbolicLink()) {
+                mCopies.add(new Entry(relative, display, "cL+++++++++", link.toString().length(), false, true));
+                mNumOfCreated.incrementAndGet();
+            } else if (!link.equals(Files.readSymbolicLink(target))) {
+                mCopies.add(new Entry(relative, display, "cL.........", link.toString().length(), false, true));
+            }
+        } else if (sourceAttributes.isRegularFile()) {
+            mTotalSize.addAndGet(sourceAttributes.size());
+            if (targetAttributes == null || !targetAttributes.isRegularFile()) {
+                mCopies.add(new Entry(relative, display, ">f+++++++++", sourceAttributes.size(), false, false));
+                mNumOfCreated.incrementAndGet();
+            } else {
+                boolean size = sourceAttributes.size() != targetAttributes.size();
+                boolean time = !isSameTime(sourceAttributes, targetAttributes);
+                if (size || time) {
+                    String flags = String.format(">f.%s%s......", size ? "s" : ".", time ? "t" : ".");
+                    mCopies.add(new Entry(relative, display, flags, sourceAttributes.size(), false, false));
+                }
+            }
+        } else {
+            error(String.format("skipping non-regular file \"%s\"", display));
+        }
+    }
+
+    /**
+     * Compares modification times by the second, like rsync without
+     * --modify-window.
+     */
+    private boolean isSameTime(BasicFileAttributes a, BasicFileAttributes b) {
+        return a.lastModifiedTime().to(TimeUnit.SECONDS) == b.lastModifiedTime().to(TimeUnit.SECONDS);
+    }
+
+    private BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void readRules(String file, boolean include) {
+        try {
+            for (String line : Files.readAllLines(new File(file).toPath(), Charset.defaultCharset())) {
+                if (StringUtils.isBlank(line) || line.startsWith("#") || line.startsWith(";")) {
+                    continue;
+                }
+
+                if (line.startsWith("+ ")) {
+                    mRules.add(new Rule(line.substring(2), true));
+                } else if (line.startsWith("- ")) {
+                    mRules.add(new Rule(line.substring(2), false));
+                } else {
+                    mRules.add(new Rule(line, include));
+                }
+            }
+        } catch (IOException ex) {
+            error(ex.toString());
+            mNumOfErrors.incrementAndGet();
+        }
+    }
+
+    private void setAttributes(Path source, Path target) throws IOException {
+        try {
+            Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source, LinkOption.NOFOLLOW_LINKS));
+        } catch (UnsupportedOperationException ex) {
+            //nvm, not a posix file system
+        }
+
+        FileTime time = Files.getLastModifiedTime(source, LinkOption.NOFOLLOW_LINKS);
+        Files.setLastModifiedTime(target, time);
+    }
+
+    private void updateDirectory(Entry entry) {
+        if (entry.mFlags != null && !entry.mCreate) {
+            item(entry);
+        }
+
+        Path source = mSource.resolve(entry.mPath);
+        if (!mDryRun && Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(mTarget.resolve(entry.mPath), LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                setAttributes(source, mTarget.resolve(entry.mPath));
+            } catch (IOException ex) {
+                error(ex.toString());
+                mNumOfErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final boolean mCreate;
+        private final String mDisplay;
+        private final String mFlags;
+        private final boolean mLink;
+        private final String mPath;
+        private final long mSize;
+
+        /**
+         * @param flags itemized flags, null if not listed
+         * @param create a directory to create
+         * @param link a symbolic link to copy
+         */
+        Entry(Path path, String display, String flags, long size, boolean create, boolean link) {
+            mPath = path.toString();
+            mDisplay = display;
+            mFlags = flags;
+            mSize = size;
+            mCreate = create;
+            mLink = link;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return mPath.compareTo(o.mPath);
+        }
+    }
+
+    /**
+     * Writes overall progress in the format of rsync --info=progress2.
+     */
+    private class Progress {
+
+        private final long mStarted = System.nanoTime();
+        private final long mSize;
+        private final int mNumOfFiles;
+        private long mTransferred;
+        private int mNumOfTransferred;
+
+        Progress(long size, int numOfFiles) {
+            mSize = size;
+            mNumOfFiles = numOfFiles;
+        }
+
+        synchronized void update(long size) {
+            mTransferred += size;
+            mNumOfTransferred++;
+            if (!mOverall) {
+                return;
+            }
+
+            double seconds = Math.max(0.001, (System.nanoTime() - mStarted) / 1e9);
+            double speed = mTransferred / seconds;
+            long eta = speed > 0 ? (long) ((mSize - mTransferred) / speed) : 0;
+            int percentage = mSize > 0 ? (int) (mTransferred * 100 / mSize) : 100;
+
+            out(String.format("%15s %3d%% %7.2fMB/s %d:%02d:%02d (xfr#%d, to-chk=%d/%d)",
+                    String.format("%,d", mTransferred),
+                    percentage,
+                    speed / 1024 / 1024,
+                    eta / 3600, eta / 60 % 60, eta % 60,
+                    mNumOfTransferred,
+                    mNumOfFiles - mNumOfTransferred,
+                    mNumOfFiles));
+        }
+    }
+
+    /**
+     * An include or exclude pattern with the matching rules of rsync.
+     */
+    private static class Rule {
+
+        private final boolean mDirectoryOnly;
+        private final boolean mInclude;
+        private final boolean mName;
+        private final Pattern mPattern;
+
+        Rule(String pattern, boolean include) {
+            mInclude = include;
+            mDirectoryOnly = pattern.endsWith("/");
+            if (mDirectoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+
+            boolean anchored = pattern.startsWith("/");
+            if (anchored) {
+                pattern = pattern.substring(1);
+            }
+
+            // without a slash or ** only the name is matched, unanchored paths match a trailing part
+            mName = !anchored && !pattern.contains("/") && !pattern.contains("**");
+            String regex = toRegex(pattern);
+            if (!anchored && !mName) {
+                regex = "(?:.*/)?" + regex;
+            }
+
+            mPattern = Pattern.compile(regex);
+        }
+
+        boolean matches(String path, String name, boolean directory) {
+            if (mDirectoryOnly && !directory) {
+                return false;
+            }
+
+            return mPattern.matcher(mName ? name : path).matches();
+        }
+
+        private static String toRegex(String pattern) {
+            StringBuilder builder = new StringBuilder();
+
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    builder.append(".*");
+                    i++;
+                } else if (c == '*') {
+                    builder.append("[^/]*");
+                } else if (c == '?') {
+                    builder.append("[^/]");
+                } else if (c == '[' && pattern.indexOf(']', i + 2) > 0) {
+                    int end = pattern.indexOf(']', i + 2);
+                    String set = pattern.substring(i + 1, end);
+                    if (set.startsWith("!")) {
+                        set = "^" + set.substring(1);
+                    }
+                    builder.append('[').append(set.replace("\\", "\\\\")).append(']');
+                    i = end;
+                } else if (c == '\\' && i + 1 < pattern.length()) {
+                    builder.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else {
+                    builder.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+
+            return builder.toString();
+        }
+    }
+
+    private class Walker extends RecursiveAction {
+
+        private final Path mRelative;
+        private final boolean mTargetExists;
+
+        Walker(Path relative, boolean targetExists) {
+            mRelative = relative;
+            mTargetExists = targetExists;
+        }
+
+        @Override
+        protected void compute() {
+            Map<String, BasicFileAttributes> sourceEntries = list(mSource.resolve(mRelative));
+            Map<String, BasicFileAttributes> targetEntries = mTargetExists ? list(mTarget.resolve(mRelative)) : Collections.emptyMap();
+            ArrayList<Walker> walkers = new ArrayList<>();
+
+            for (Map.Entry<String, BasicFileAttributes> entry : sourceEntries.entrySet()) {
+                Path relative = mRelative.resolve(entry.getKey());
+                BasicFileAttributes attributes = entry.getValue();
+                if (isExcluded(relative, attributes.isDirectory())) {
+                    continue;
+                }
+
+                BasicFileAttributes targetAttributes = targetEntries.get(entry.getKey());
+                try {
+                    plan(relative, targetAttributes, attributes);
+                } catch (IOException ex) {
+                    error(ex.toString());
+                    mNumOfErrors.incrementAndGet();
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    walkers.add(new Walker(relative, targetAttributes != null && targetAttributes.isDirectory()));
+                }
+            }
+
+            if (mDelete) {
+                for (Map.Entry<String, BasicFileAttributes> entry : targetEntries.entrySet()) {
+                    Path relative = mRelative.resolve(entry.getKey());
+                    BasicFileAttributes attributes = entry.getValue();
+                    boolean excluded = isExcluded(relative, attributes.isDirectory());
+                    boolean extraneous = !sourceEntries.containsKey(entry.getKey()) || excluded;
+
+                    // excluded files are protected from deletion unless --delete-excluded
+                    if (extraneous && (!excluded || mDeleteExcluded)) {
+                        try {
+                            plan(relative, attributes, null);
+                        } catch (IOException ex) {
+                            error(ex.toString());
+                            mNumOfErrors.incrementAndGet();
+                        }
+                    }
+                }
+            }
+
+            invokeAll(walkers);
+        }
+
+        private Map<String, BasicFileAttributes> list(Path directory) {
+            TreeMap<String, BasicFileAttributes> entries = new TreeMap<>();
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path path : directoryStream) {
+                    BasicFileAttributes attributes = readAttributes(path);
+                    if (attributes == null) {
+                        mNumOfVanished.incrementAndGet();
+                    } else {
+                        entries.put(path.getFileName().toString(), attributes);
+                    }
+                }
+            } catch (IOException ex) {
+                error(ex.toString());
+                mNumOfErrors.incrementAndGet();
+            }
+
+            return entries;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FileUtils;
+import se.trixon.almond.util.FileHelper;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.job.Job;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Writes the log files of a run while the run is in progress.
+ *
+ * Lines are queued by the caller and written on a shared pool of writer
+ * threads, one thread at a time per appender, so appending never waits for
+ * the disk and a slow log disk only holds up the logs written to it. The
+ * queue holds at most MAX_QUEUED characters, when the writer falls behind
+ * further entries are spilled to a temporary file that it reads back in
+ * order, so a slow disk does not fill the heap. Written data is flushed to
+ * the OS right away and forced to the device at most once per second.
+ *
+ * Jobs with itemized tasks also get a per-run manifest of the transferred
+ * and deleted items.
+ *
+ * @author Patrik Karlström
+ */
+class LogAppender {
+
+    private static final long FORCE_INTERVAL = 1000;
+    private static final int MAX_QUEUED = 1024 * 1024;
+    private static final AtomicInteger sThreadCounter = new AtomicInteger();
+    private static final ExecutorService sExecutorService = Executors.newCachedThreadPool((runnable) -> {
+        Thread thread = new Thread(runnable, "jota-log-writer-" + sThreadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean mDirty;
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private Writer mErrWriter;
+    private FileChannel mErrChannel;
+    private final List<File> mFiles = new ArrayList<>();
+    private boolean mForceScheduled;
+    private long mLastForce;
+    private int mNumOfDropped;
+    private FileChannel mManifestChannel;
+    private Writer mManifestWriter;
+    private FileChannel mOutChannel;
+    private Writer mOutWriter;
+    private final ConcurrentLinkedQueue<Entry> mQueue = new ConcurrentLinkedQueue<>();
+    private final Object mQueueLock = new Object();
+    private int mQueued;
+    private Spill mSpill;
+
+    /**
+     * Opens the log files according to the log settings of the job.
+     *
+     * @param job the job
+     * @param lastRun start time of the run, used by per-run file names
+     */
+    LogAppender(Job job, long lastRun) {
+        File directory = new File(ServerOptions.INSTANCE.getLogDir());
+        String jobName = FileHelper.replaceInvalidChars(job.getName());
+        String outFile = String.format("%s.log", jobName);
+        String errFile = String.format("%s.err", jobName);
+
+        int logMode = job.getLogMode();
+        if (logMode == 2) {
+            outFile = String.format("%s %s.log", jobName, job.getLastRunDateTime("", lastRun));
+            errFile = String.format("%s %s.err", jobName, job.getLastRunDateTime("", lastRun));
+        }
+
+        boolean append = logMode == 0;
+
+        try {
+            FileUtils.forceMkdir(directory);
+
+            if (job.isLogOutput() || job.isLogErrors() && !job.isLogSeparateErrors()) {
+                File file = new File(directory, outFile);
+                FileOutputStream outputStream = new FileOutputStream(file, append);
+                mOutChannel = outputStream.getChannel();
+                mOutWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                mFiles.add(file);
+            }
+
+            if (job.isLogErrors() && job.isLogSeparateErrors()) {
+                File file = new File(directory, errFile);
+                FileOutputStream outputStream = new FileOutputStream(file, append);
+                mErrChannel = outputStream.getChannel();
+                mErrWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                mFiles.add(file);
+            }
+
+            if (job.getTasks().stream().anyMatch(Task::isItemize)) {
+                File file = new File(directory, String.format("%s %s.manifest", jobName, job.getLastRunDateTime("", lastRun)));
+                FileOutputStream outputStream = new FileOutputStream(file);
+                mManifestChannel = outputStream.getChannel();
+                mManifestWriter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+                mFiles.add(file);
+            }
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+    }
+
+    void appendErr(String string) {
+        append(new Entry(Target.ERR, string));
+    }
+
+    void appendManifest(String string) {
+        append(new Entry(Target.MANIFEST, string));
+    }
+
+    void appendOut(String string) {
+        append(new Entry(Target.OUT, string));
+    }
+
+    /**
+     * Writes everything queued, forces it to the device and closes the files.
+     *
+     * @return the log files of the run
+     */
+    List<File> close() {
+        try {
+            sExecutorService.submit(this::closeFiles).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            closeFiles();
+        } catch (ExecutionException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+
+        return mFiles;
+    }
+
+    /**
+     * Queues the entry, or spills it if the queue is full or entries are
+     * already spilled. The entry is dropped and counted if the spill file can
+     * not be written.
+     */
+    private void append(Entry entry) {
+        synchronized (mQueueLock) {
+            if (mSpill == null && mQueued + entry.mString.length() <= MAX_QUEUED) {
+                mQueue.add(entry);
+                mQueued += entry.mString.length();
+            } else {
+                try {
+                    if (mSpill == null) {
+                        mSpill = new Spill();
+                    }
+                    mSpill.write(entry);
+                } catch (IOException ex) {
+                    if (mNumOfDropped++ == 0) {
+                        Xlog.timedErr(ex.getLocalizedMessage());
+                    }
+                }
+            }
+        }
+
+        scheduleDrain();
+    }
+
+    private synchronized void closeFiles() {
+        drain();
+        force();
+
+        try {
+            if (mOutWriter != null) {
+                mOutWriter.close();
+                mOutWriter = null;
+            }
+
+            if (mErrWriter != null) {
+                mErrWriter.close();
+                mErrWriter = null;
+            }
+
+            if (mManifestWriter != null) {
+                mManifestWriter.close();
+                mManifestWriter = null;
+            }
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+    }
+
+    private synchronized void drain() {
+        while (true) {
+            Entry entry;
+            while ((entry = mQueue.poll()) != null) {
+                write(entry);
+                synchronized (mQueueLock) {
+                    mQueued -= entry.mString.length();
+                }
+            }
+
+            // nothing is queued while entries are spilled, what is spilled is newer
+            Spill spill;
+            long limit;
+            synchronized (mQueueLock) {
+                if (!mQueue.isEmpty()) {
+                    continue;
+                }
+
+                spill = mSpill;
+                try {
+                    limit = spill == null ? 0 : spill.flush();
+                } catch (IOException ex) {
+                    Xlog.timedErr(ex.getLocalizedMessage());
+                    limit = -1;
+                }
+            }
+
+            if (spill == null) {
+                break;
+            }
+
+            try {
+                while (spill.mRead < limit) {
+                    write(spill.read());
+                }
+            } catch (IOException ex) {
+                Xlog.timedErr(ex.getLocalizedMessage());
+                limit = -1;
+            }
+
+            synchronized (mQueueLock) {
+                // queue again once everything spilled is written
+                if (limit < 0 || spill.mRead == spill.mWritten) {
+                    spill.delete();
+                    mSpill = null;
+                    break;
+                }
+            }
+        }
+
+        int numOfDropped;
+        synchronized (mQueueLock) {
+            numOfDropped = mNumOfDropped;
+            mNumOfDropped = 0;
+        }
+
+        if (numOfDropped > 0) {
+            write(new Entry(Target.ERR, String.format("jotasync: %d log entries were dropped, the spill file could not be written\n", numOfDropped)));
+        }
+
+        try {
+            if (mOutWriter != null) {
+                mOutWriter.flush();
+            }
+
+            if (mErrWriter != null) {
+                mErrWriter.flush();
+            }
+
+            if (mManifestWriter != null) {
+                mManifestWriter.flush();
+            }
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+
+        if (mDirty) {
+            long delay = mLastForce + FORCE_INTERVAL - System.currentTimeMillis();
+            if (delay <= 0) {
+                force();
+            } else if (!mForceScheduled) {
+                mForceScheduled = true;
+                CompletableFuture.runAsync(() -> {
+                    synchronized (this) {
+                        mForceScheduled = false;
+                        force();
+                    }
+                }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, sExecutorService));
+            }
+        }
+    }
+
+    private synchronized void force() {
+        if (!mDirty) {
+            return;
+        }
+
+        try {
+            if (mOutChannel != null && mOutChannel.isOpen()) {
+                mOutChannel.force(false);
+            }
+
+            if (mErrChannel != null && mErrChannel.isOpen()) {
+                mErrChannel.force(false);
+            }
+
+            if (mManifestChannel != null && mManifestChannel.isOpen()) {
+                mManifestChannel.force(false);
+            }
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+
+        mDirty = false;
+        mLastForce = System.currentTimeMillis();
+    }
+
+    private void write(Entry entry) {
+        Writer writer;
+        if (entry.mTarget == Target.MANIFEST) {
+            writer = mManifestWriter;
+        } else if (entry.mTarget == Target.ERR && mErrWriter != null) {
+            writer = mErrWriter;
+        } else {
+            // errors go to the regular log when they are not logged separately
+            writer = mOutWriter;
+        }
+
+        try {
+            if (writer != null) {
+                writer.write(entry.mString);
+                mDirty = true;
+            }
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+    }
+
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            sExecutorService.execute(() -> {
+                mDrainScheduled.set(false);
+                drain();
+            });
+        }
+    }
+
+    private enum Target {
+        OUT, ERR, MANIFEST;
+    }
+
+    private static class Entry {
+
+        private final String mString;
+        private final Target mTarget;
+
+        Entry(Target target, String string) {
+            mTarget = target;
+            mString = string;
+        }
+    }
+
+    /**
+     * The entries that did not fit in the queue, in a temporary file that the
+     * writer reads back in the order they were written.
+     */
+    private static class Spill {
+
+        private final File mFile;
+        private final DataInputStream mInputStream;
+        private boolean mFailed;
+        private final DataOutputStream mOutputStream;
+        private long mRead;
+        private long mWritten;
+
+        Spill() throws IOException {
+            mFile = File.createTempFile("jotasync", ".spill");
+            mFile.deleteOnExit();
+            mOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile)));
+            mInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        }
+
+        void delete() {
+            try {
+                mOutputStream.close();
+                mInputStream.close();
+            } catch (IOException ex) {
+                //nvm
+            }
+
+            mFile.delete();
+        }
+
+        /**
+         * Makes the written entries readable.
+         *
+         * @return the position up to which entries can be read
+         */
+        long flush() throws IOException {
+            mOutputStream.flush();
+
+            return mWritten;
+        }
+
+        Entry read() throws IOException {
+            Target target = Target.values()[mInputStream.readByte()];
+            byte[] bytes = new byte[mInputStream.readInt()];
+            mInputStream.readFully(bytes);
+            mRead += 5 + bytes.length;
+
+            return new Entry(target, new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Appends the entry, a failed write leaves a partial entry so nothing
+         * more is written after it.
+         */
+        void write(Entry entry) throws IOException {
+            if (mFailed) {
+                throw new IOException(String.format("%s could not be written", mFile));
+            }
+
+            byte[] bytes = entry.mString.getBytes(StandardCharsets.UTF_8);
+            try {
+                mOutputStream.writeByte(entry.mTarget.ordinal());
+                mOutputStream.writeInt(bytes.length);
+                mOutputStream.write(bytes);
+            } catch (IOException ex) {
+                mFailed = true;
+                throw ex;
+            }
+            mWritten += 5 + bytes.length;
+        }
+    }
+}
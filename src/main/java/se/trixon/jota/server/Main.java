@@ -82,11 +82,13 @@ public class Main {
         Option help = new Option("?", "help", false, sBundle.getString("opt_help_desc"));
         Option version = new Option("v", "version", false, sBundle.getString("opt_version_desc"));
         Option port = Option.builder("p").longOpt("port").argName(portString).hasArg(true).desc(sBundle.getString("opt_port_server_desc")).build();
+        Option resume = new Option(null, "resume", false, sBundle.getString("opt_resume_server_desc"));
 
         Options options = new Options();
         options.addOption(help);
         options.addOption(version);
         options.addOption(port);
+        options.addOption(resume);
 
         return options;
     }
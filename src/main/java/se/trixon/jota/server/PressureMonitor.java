@@ -0,0 +1,203 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.ResourceBundle;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.almond.util.SystemHelper;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.Jota;
+import se.trixon.jota.shared.job.Job;
+
+/**
+ * Defers the scheduled start of jobs while the host is under load.
+ *
+ * The load is sampled from the Linux pressure stall information, the share of
+ * the last minute that some tasks waited for I/O or CPU, and from the load
+ * average per processor. A job with thresholds waits while any of them is
+ * exceeded, but no longer than its maximum deferral. Values the host does not
+ * provide are not compared.
+ *
+ * @author Patrik Karlström
+ */
+class PressureMonitor {
+
+    private static final Path CPU = Paths.get("/proc/pressure/cpu");
+    private static final Path IO = Paths.get("/proc/pressure/io");
+    private static final Path LOADAVG = Paths.get("/proc/loadavg");
+    private static final long SAMPLE_INTERVAL = 5000;
+    private final ResourceBundle mBundle = SystemHelper.getBundle(PressureMonitor.class, "Bundle");
+    private final LinkedHashMap<Long, Deferral> mDeferrals = new LinkedHashMap<>();
+    private Sample mSample;
+
+    /**
+     * Returns the avg60 of the some line of a pressure file, NaN if not
+     * available.
+     */
+    static double parsePressure(String content) {
+        for (String line : StringUtils.split(content, '\n')) {
+            if (line.startsWith("some ")) {
+                for (String field : StringUtils.split(line, ' ')) {
+                    if (field.startsWith("avg60=")) {
+                        try {
+                            return Double.parseDouble(field.substring(6));
+                        } catch (NumberFormatException ex) {
+                            return Double.NaN;
+                        }
+                    }
+                }
+            }
+        }
+
+        return Double.NaN;
+    }
+
+    private static String read(Path path) {
+        try {
+            return new String(Files.readAllBytes(path));
+        } catch (IOException | SecurityException ex) {
+            return "";
+        }
+    }
+
+    /**
+     * Returns the reason to defer the start of the job, or null to start it.
+     *
+     * The first deferral of a job is logged and remembered. A job deferred
+     * longer than its maximum deferral is started despite the pressure.
+     */
+    synchronized String defer(Job job) {
+        String reason = getReason(job);
+        long now = System.currentTimeMillis();
+        Deferral deferral = mDeferrals.get(job.getId());
+
+        if (reason == null) {
+            mDeferrals.remove(job.getId());
+        } else if (deferral == null) {
+            mDeferrals.put(job.getId(), new Deferral(now, reason));
+            Xlog.timedOut(String.format(mBundle.getString("run_deferred"), job.getName(), reason));
+        } else if (job.getDeferMax() > 0 && now - deferral.mSince >= job.getDeferMax() * 60 * 1000L) {
+            mDeferrals.remove(job.getId());
+            Xlog.timedOut(String.format(mBundle.getString("run_defer_max"), job.getName(), job.getDeferMax(), reason));
+            reason = null;
+        } else {
+            deferral.mReason = reason;
+        }
+
+        return reason;
+    }
+
+    /**
+     * Returns what exceeds the thresholds of the job, null if nothing does.
+     */
+    synchronized String getReason(Job job) {
+        if (job.getDeferIo() <= 0 && job.getDeferCpu() <= 0 && job.getDeferLoad() <= 0) {
+            return null;
+        }
+
+        Sample sample = getSample();
+        ArrayList<String> reasons = new ArrayList<>();
+        if (job.getDeferIo() > 0 && sample.mIo > job.getDeferIo()) {
+            reasons.add(String.format("io %.1f%% > %d%%", sample.mIo, job.getDeferIo()));
+        }
+        if (job.getDeferCpu() > 0 && sample.mCpu > job.getDeferCpu()) {
+            reasons.add(String.format("cpu %.1f%% > %d%%", sample.mCpu, job.getDeferCpu()));
+        }
+        if (job.getDeferLoad() > 0 && sample.mLoad > job.getDeferLoad()) {
+            reasons.add(String.format("load %.2f > %.2f", sample.mLoad, job.getDeferLoad()));
+        }
+
+        return reasons.isEmpty() ? null : StringUtils.join(reasons, ", ");
+    }
+
+    synchronized String getStatus() {
+        Sample sample = getSample();
+        StringBuilder builder = new StringBuilder(String.format("Pressure (io %s, cpu %s, load %s)\n",
+                format(sample.mIo, "%.1f%%"),
+                format(sample.mCpu, "%.1f%%"),
+                format(sample.mLoad, "%.2f")));
+
+        mDeferrals.forEach((jobId, deferral) -> {
+            Job job = JobManager.INSTANCE.getJobById(jobId);
+            String name = job == null ? String.valueOf(jobId) : job.getName();
+            builder.append(String.format("  deferred     %s since %s: %s", name, Jota.millisToDateTime(deferral.mSince), deferral.mReason)).append("\n");
+        });
+
+        return builder.toString();
+    }
+
+    /**
+     * Forgets the deferral of a job that is no longer waiting.
+     */
+    synchronized void remove(long jobId) {
+        mDeferrals.remove(jobId);
+    }
+
+    private String format(double value, String format) {
+        return Double.isNaN(value) ? "n/a" : String.format(format, value);
+    }
+
+    private Sample getSample() {
+        long now = System.currentTimeMillis();
+        if (mSample == null || now - mSample.mTime >= SAMPLE_INTERVAL) {
+            double load = Double.NaN;
+            String[] loadavg = StringUtils.split(read(LOADAVG), ' ');
+            if (loadavg.length > 0) {
+                try {
+                    load = Double.parseDouble(loadavg[0]) / Runtime.getRuntime().availableProcessors();
+                } catch (NumberFormatException ex) {
+                    // not available
+                }
+            }
+
+            mSample = new Sample(now, parsePressure(read(IO)), parsePressure(read(CPU)), load);
+        }
+
+        return mSample;
+    }
+
+    private static class Deferral {
+
+        private String mReason;
+        private final long mSince;
+
+        Deferral(long since, String reason) {
+            mSince = since;
+            mReason = reason;
+        }
+    }
+
+    private static class Sample {
+
+        private final double mCpu;
+        private final double mIo;
+        private final double mLoad;
+        private final long mTime;
+
+        Sample(long time, double io, double cpu, double load) {
+            mTime = time;
+            mIo = io;
+            mCpu = cpu;
+            mLoad = load;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Runs an external process and pumps its output.
+ *
+ * The returned future completes with the exit value once the process has
+ * exited and every line of stdout and stderr has been delivered, so no
+ * output can arrive after the caller has moved on.
+ *
+ * @author Patrik Karlström
+ */
+class ProcessRunner {
+
+    private final Consumer<String> mErrConsumer;
+    private final Consumer<String> mOutConsumer;
+    private Process mProcess;
+
+    ProcessRunner(Consumer<String> outConsumer, Consumer<String> errConsumer) {
+        mOutConsumer = outConsumer;
+        mErrConsumer = errConsumer;
+    }
+
+    Process getProcess() {
+        return mProcess;
+    }
+
+    CompletableFuture<Integer> start(List<String> command) throws IOException {
+        mProcess = new ProcessBuilder(command).start();
+
+        StreamPump streamPump = StreamPump.getInstance();
+        CompletableFuture<Void> out = streamPump.pump(mProcess, mProcess.getInputStream(), mOutConsumer);
+        CompletableFuture<Void> err = streamPump.pump(mProcess, mProcess.getErrorStream(), mErrConsumer);
+
+        return mProcess.onExit().thenCombine(CompletableFuture.allOf(out, err), (process, drained) -> {
+            return process.exitValue();
+        });
+    }
+}
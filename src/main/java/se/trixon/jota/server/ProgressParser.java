@@ -0,0 +1,80 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.jota.shared.ProgressState;
+
+/**
+ * Parses the progress lines of rsync --progress and --info=progress2.
+ *
+ * @author Patrik Karlström
+ */
+class ProgressParser {
+
+    private static final Pattern CHECK_PATTERN = Pattern.compile("(?:to|ir)-chk=(\\d+)/(\\d+)");
+    private static final Pattern TRANSFERRED_PATTERN = Pattern.compile("xfr#(\\d+)");
+
+    /**
+     * Returns the progress of a progress line or null if the line is
+     * something else.
+     *
+     * @param line the line
+     * @param overall true if the task runs with --info=progress2
+     */
+    static ProgressState parse(String line, boolean overall) {
+        if (line.indexOf('%') < 0) {
+            return null;
+        }
+
+        String[] elements = StringUtils.split(line);
+        if (elements.length < 4
+                || !elements[1].endsWith("%")
+                || !elements[2].endsWith("/s")
+                || !elements[3].contains(":")) {
+            return null;
+        }
+
+        int percentage;
+        try {
+            percentage = Integer.parseInt(elements[1].substring(0, elements[1].length() - 1));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        int numOfTransferred = -1;
+        int numOfFilesLeft = -1;
+        int numOfFilesTotal = -1;
+
+        Matcher matcher = TRANSFERRED_PATTERN.matcher(line);
+        if (matcher.find()) {
+            numOfTransferred = Integer.parseInt(matcher.group(1));
+        }
+
+        matcher = CHECK_PATTERN.matcher(line);
+        if (matcher.find()) {
+            numOfFilesLeft = Integer.parseInt(matcher.group(1));
+            numOfFilesTotal = Integer.parseInt(matcher.group(2));
+        }
+
+        return new ProgressState(elements[0], percentage, elements[2], elements[3], numOfTransferred, numOfFilesLeft, numOfFilesTotal, overall);
+    }
+
+    private ProgressParser() {
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * The resources that concurrent tasks compete for, named by tags.
+ *
+ * A task has the tags set by the user and, unless turned off, the tags of its
+ * source and destination. A local path is tagged with the mount point of its
+ * disk, "disk:/mnt/usb", and a remote one with its host, "host:nas".
+ *
+ * The limits are a comma separated list of the most concurrent tasks per tag,
+ * "*" applies to the tags not listed and 0 is unlimited, e.g.
+ * "disk:/mnt/usb=1,host:nas=2,*=0".
+ *
+ * @author Patrik Karlström
+ */
+class ResourceTags {
+
+    static final String ANY = "*";
+
+    /**
+     * Returns the tag of a source or destination, null if it has none.
+     */
+    static String getTag(String location) {
+        location = StringUtils.trimToEmpty(location);
+        if (location.isEmpty()) {
+            return null;
+        }
+
+        // rsync://[user@]host[:port]/module, [user@]host::module and [user@]host:path, not C:\dir
+        if (ShardPlanner.isRemote(location)) {
+            String host;
+            if (location.startsWith("rsync://")) {
+                host = StringUtils.substringBefore(location.substring(8), "/");
+            } else {
+                host = StringUtils.substringBefore(location, ":");
+            }
+
+            host = StringUtils.substringBefore(StringUtils.substringAfterLast("@" + host, "@"), ":");
+
+            return host.isEmpty() ? null : "host:" + host.toLowerCase(Locale.ROOT);
+        }
+
+        // the deepest existing directory, the destination may not exist yet
+        Path path = new File(location).toPath().toAbsolutePath().normalize();
+        while (path != null && !Files.exists(path)) {
+            path = path.getParent();
+        }
+
+        if (path == null) {
+            return null;
+        }
+
+        try {
+            FileStore fileStore = Files.getFileStore(path);
+            // mount point (device)
+            String name = fileStore.toString();
+            int index = name.lastIndexOf(" (");
+
+            return "disk:" + (index > 0 ? name.substring(0, index) : fileStore.name());
+        } catch (IOException | SecurityException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the tags of the task.
+     */
+    static Set<String> getTags(Task task) {
+        LinkedHashSet<String> tags = new LinkedHashSet<>();
+        for (String tag : StringUtils.split(StringUtils.defaultString(task.getResourceTags()), ',')) {
+            if (StringUtils.isNotBlank(tag)) {
+                tags.add(tag.trim());
+            }
+        }
+
+        if (task.isResourceTagsAuto()) {
+            for (String location : new String[]{task.getSource(), task.getDestination()}) {
+                String tag = getTag(location);
+                if (tag != null) {
+                    tags.add(tag);
+                }
+            }
+        }
+
+        return tags;
+    }
+
+    /**
+     * Returns the limits by tag.
+     *
+     * @param limits tag=count entries, comma separated
+     * @throws IllegalArgumentException if the limits are malformed
+     */
+    static Map<String, Integer> parseLimits(String limits) {
+        HashMap<String, Integer> result = new HashMap<>();
+
+        for (String entry : StringUtils.split(StringUtils.defaultString(limits), ',')) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+
+            int index = entry.lastIndexOf('=');
+            if (index <= 0) {
+                throw new IllegalArgumentException(entry);
+            }
+
+            try {
+                int count = Integer.parseInt(entry.substring(index + 1).trim());
+                if (count < 0) {
+                    throw new IllegalArgumentException(entry);
+                }
+                result.put(entry.substring(0, index).trim(), count);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(entry);
+            }
+        }
+
+        return result;
+    }
+
+    private ResourceTags() {
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.util.LinkedHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sums the --stats output of several rsync runs.
+ *
+ * Every "Name: number" line is added up, except timings which do not add.
+ *
+ * @author Patrik Karlström
+ */
+class RsyncStats {
+
+    private static final Pattern STAT_PATTERN = Pattern.compile("^([A-Z][A-Za-z ]+): ([\\d,]+)( bytes)?(\\s.*)?$");
+    private final LinkedHashMap<String, Long> mValues = new LinkedHashMap<>();
+    private final LinkedHashMap<String, String> mUnits = new LinkedHashMap<>();
+
+    RsyncStats() {
+    }
+
+    synchronized String getSummary() {
+        StringBuilder builder = new StringBuilder();
+        mValues.forEach((name, value) -> {
+            builder.append(String.format("%s: %,d%s", name, value, mUnits.get(name))).append("\n");
+        });
+
+        return builder.toString();
+    }
+
+    synchronized boolean isEmpty() {
+        return mValues.isEmpty();
+    }
+
+    synchronized void parse(String line) {
+        Matcher matcher = STAT_PATTERN.matcher(line);
+        if (matcher.matches() && !matcher.group(1).contains("time")) {
+            String name = matcher.group(1);
+            try {
+                long value = Long.parseLong(matcher.group(2).replace(",", ""));
+                mValues.merge(name, value, Long::sum);
+                mUnits.putIfAbsent(name, matcher.group(3) == null ? "" : matcher.group(3));
+            } catch (NumberFormatException ex) {
+                //nvm
+            }
+        }
+    }
+}
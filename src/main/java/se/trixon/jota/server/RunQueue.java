@@ -0,0 +1,276 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import it.sauronsoftware.cron4j.Predictor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.Jota;
+import se.trixon.jota.shared.job.Job;
+
+/**
+ * Scheduled runs waiting to be started, kept on disk along with the last time
+ * the scheduler was known to be running.
+ *
+ * A run waits here if its job was already running when it was triggered, if
+ * its start is deferred while the host is under pressure, or if it was missed
+ * while the server was down and the job catches up.
+ *
+ * @author Patrik Karlström
+ */
+class RunQueue {
+
+    /**
+     * The most missed runs of a job that are made up for.
+     */
+    static final int MAX_MISSED = 100;
+    private static final String KEY_CHECKED = "checked";
+    private static final String KEY_RUN = "run.";
+    private long mChecked;
+    private final File mFile;
+    private final ArrayList<Run> mRuns = new ArrayList<>();
+
+    /**
+     * Returns the times the cron items of the job matched after from and up to
+     * to, the newest MAX_MISSED of them.
+     */
+    static List<Long> getMissed(Job job, long from, long to) {
+        TreeSet<Long> missed = new TreeSet<>();
+
+        for (String cronString : StringUtils.split(job.getCronItems(), "|")) {
+            try {
+                Predictor predictor = CronRegistry.getPredictor(job, cronString, from);
+                for (long time = predictor.nextMatchingTime(); time <= to; time = predictor.nextMatchingTime()) {
+                    missed.add(time);
+                    if (missed.size() > MAX_MISSED) {
+                        missed.pollFirst();
+                    }
+                }
+            } catch (RuntimeException ex) {
+                Xlog.timedErr(String.format("%s: %s", job.getName(), ex.getLocalizedMessage()));
+            }
+        }
+
+        return new ArrayList<>(missed);
+    }
+
+    RunQueue() {
+        mFile = new File(JotaManager.getInstance().getDirectory(), "jotasync.queue");
+
+        if (mFile.isFile()) {
+            try (InputStream inputStream = Files.newInputStream(mFile.toPath())) {
+                Properties properties = new Properties();
+                properties.load(inputStream);
+                mChecked = Long.parseLong(properties.getProperty(KEY_CHECKED, "0"));
+
+                TreeSet<Integer> indexes = new TreeSet<>();
+                for (String key : properties.stringPropertyNames()) {
+                    if (key.startsWith(KEY_RUN)) {
+                        indexes.add(Integer.valueOf(key.substring(KEY_RUN.length())));
+                    }
+                }
+
+                for (Integer index : indexes) {
+                    String[] values = StringUtils.split(properties.getProperty(KEY_RUN + index), ',');
+                    mRuns.add(new Run(Long.parseLong(values[0]), Long.parseLong(values[1]), Reason.valueOf(values[2])));
+                }
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(RunQueue.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Queues a run of the job, a busy or deferred run only if the job has none
+     * waiting already for the same reason since they would all sync the same.
+     *
+     * @return true if queued
+     */
+    synchronized boolean add(long jobId, long due, Reason reason) {
+        if (reason != Reason.MISSED) {
+            for (Run run : mRuns) {
+                if (run.mJobId == jobId && run.mReason == reason) {
+                    return false;
+                }
+            }
+        }
+
+        mRuns.add(new Run(jobId, due, reason));
+        save();
+
+        return true;
+    }
+
+    /**
+     * Replaces all waiting runs of the job with one run.
+     *
+     * @return the number of waiting runs replaced
+     */
+    synchronized int coalesce(long jobId, long due) {
+        int count = (int) mRuns.stream().filter((run) -> run.mJobId == jobId).count();
+        mRuns.removeIf((run) -> run.mJobId == jobId);
+        mRuns.add(new Run(jobId, due, Reason.BUSY));
+        save();
+
+        return count;
+    }
+
+    /**
+     * Returns the last time the scheduler was known to be running, 0 if
+     * never.
+     */
+    synchronized long getChecked() {
+        return mChecked;
+    }
+
+    /**
+     * Returns the ids of the jobs with waiting runs.
+     */
+    synchronized Set<Long> getJobIds() {
+        LinkedHashSet<Long> jobIds = new LinkedHashSet<>();
+        mRuns.forEach((run) -> {
+            jobIds.add(run.mJobId);
+        });
+
+        return jobIds;
+    }
+
+    synchronized String getStatus() {
+        int pad = 13;
+        StringBuilder builder = new StringBuilder(String.format("Run queue (%d waiting)\n", mRuns.size()));
+        mRuns.forEach((run) -> {
+            Job job = JobManager.INSTANCE.getJobById(run.mJobId);
+            String name = job == null ? String.valueOf(run.mJobId) : job.getName();
+            builder.append(String.format("  %s%s (%s)", StringUtils.rightPad(run.mReason.name().toLowerCase(), pad), name, Jota.millisToDateTime(run.mDue))).append("\n");
+        });
+
+        return builder.toString();
+    }
+
+    /**
+     * Removes and returns the first waiting run of the job, null if none.
+     */
+    synchronized Run poll(long jobId) {
+        for (Iterator<Run> iterator = mRuns.iterator(); iterator.hasNext();) {
+            Run run = iterator.next();
+            if (run.mJobId == jobId) {
+                iterator.remove();
+                save();
+
+                return run;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all waiting runs of the job.
+     */
+    synchronized void remove(long jobId) {
+        if (mRuns.removeIf((run) -> run.mJobId == jobId)) {
+            save();
+        }
+    }
+
+    /**
+     * Removes the waiting runs of the job queued for the reason.
+     */
+    synchronized void remove(long jobId, Reason reason) {
+        if (mRuns.removeIf((run) -> run.mJobId == jobId && run.mReason == reason)) {
+            save();
+        }
+    }
+
+    /**
+     * Stores the last time the scheduler was known to be running.
+     */
+    synchronized void setChecked(long checked) {
+        mChecked = checked;
+        save();
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_CHECKED, String.valueOf(mChecked));
+        for (int i = 0; i < mRuns.size(); i++) {
+            Run run = mRuns.get(i);
+            properties.setProperty(KEY_RUN + i, String.format("%d,%d,%s", run.mJobId, run.mDue, run.mReason.name()));
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                properties.store(outputStream, "Queued runs");
+                outputStream.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(RunQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    enum Reason {
+        /**
+         * Triggered while the job was running.
+         */
+        BUSY,
+        /**
+         * Deferred while the host was under pressure.
+         */
+        DEFERRED,
+        /**
+         * Missed while the server was down.
+         */
+        MISSED;
+    }
+
+    static class Run {
+
+        private final long mDue;
+        private final long mJobId;
+        private final Reason mReason;
+
+        private Run(long jobId, long due, Reason reason) {
+            mJobId = jobId;
+            mDue = due;
+            mReason = reason;
+        }
+
+        long getDue() {
+            return mDue;
+        }
+
+        Reason getReason() {
+            return mReason;
+        }
+    }
+}
@@ -15,7 +15,6 @@
  */
 package se.trixon.jota.server;
 
-import it.sauronsoftware.cron4j.Scheduler;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.nio.charset.Charset;
@@ -25,13 +24,22 @@ import java.rmi.RemoteException;
 import java.rmi.dgc.VMID;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.time.LocalTime;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.prefs.PreferenceChangeEvent;
@@ -45,7 +53,6 @@ import se.trixon.jota.shared.ClientCallbacks;
 import se.trixon.jota.shared.Jota;
 import se.trixon.jota.shared.JotaHelper;
 import se.trixon.jota.shared.JotaServer;
-import se.trixon.jota.shared.ProcessEvent;
 import se.trixon.jota.shared.ServerCommander;
 import se.trixon.jota.shared.ServerEvent;
 import se.trixon.jota.shared.job.Job;
@@ -57,21 +64,63 @@ import se.trixon.jota.shared.task.Task;
  */
 class Server extends UnicastRemoteObject implements ServerCommander {
 
+    private final BandwidthBudget mBandwidthBudget = new BandwidthBudget();
+    private final ResourceBundle mBundle = SystemHelper.getBundle(Server.class, "Bundle");
     private Set<ClientCallbacks> mClientCallbacks = Collections.newSetFromMap(new ConcurrentHashMap<ClientCallbacks, Boolean>());
-    private HashMap<Long, JobExecutor> mJobExecutors = new HashMap<>();
+    private final CronRegistry mCronRegistry;
+    private final ExecutionPool mExecutionPool = new ExecutionPool();
+    private final ExecutorService mExecutorService;
+    private final Map<Long, JobCheckpoint> mInterrupted = new ConcurrentHashMap<>();
+    private final Map<Long, JobExecutor> mJobExecutors = new ConcurrentHashMap<>();
     private final JobManager mJobManager = JobManager.INSTANCE;
     private final ResourceBundle mJotaBundle = Jota.getBundle();
     private final JotaManager mJotaManager = JotaManager.getInstance();
     private final ServerOptions mOptions = ServerOptions.INSTANCE;
     private int mPort = Jota.DEFAULT_PORT_HOST;
+    private final PressureMonitor mPressureMonitor = new PressureMonitor();
+    private final boolean mResumeInterrupted;
     private String mRmiNameServer;
-    private Scheduler mScheduler = new Scheduler();
+    private final RunQueue mRunQueue = new RunQueue();
     private VMID mServerVmid;
+    private final SourceWatcher mSourceWatcher = new SourceWatcher(this);
+    private final ThreadPoolExecutor mTaskExecutorService;
     private final TaskManager mTaskManager = TaskManager.INSTANCE;
 
     Server(CommandLine cmd) throws RemoteException, IOException {
         super(0);
 
+        AtomicInteger threadCounter = new AtomicInteger();
+        mExecutorService = Executors.newCachedThreadPool((runnable) -> {
+            return new Thread(runnable, "jota-job-" + threadCounter.incrementAndGet());
+        });
+
+        // tasks, shards and prunes queue for as many threads as rsync processes,
+        // the job threads above only wait on them and never on their own pool
+        AtomicInteger taskThreadCounter = new AtomicInteger();
+        int maxProcesses = Math.max(1, mOptions.getMaxProcesses());
+        mTaskExecutorService = new ThreadPoolExecutor(maxProcesses, maxProcesses, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            return new Thread(runnable, "jota-task-" + taskThreadCounter.incrementAndGet());
+        });
+        mTaskExecutorService.allowCoreThreadTimeOut(true);
+
+        // triggers run off the cron thread, a slow start does not hold up the schedule
+        mCronRegistry = new CronRegistry((jobId) -> {
+            mExecutorService.execute(() -> {
+                Job job = mJobManager.getJobById(jobId);
+                if (job != null) {
+                    trigger(job);
+                }
+            });
+        }, () -> {
+            mExecutorService.execute(() -> {
+                mRunQueue.setChecked(System.currentTimeMillis());
+                // deferred runs are retried as the pressure is sampled again
+                mRunQueue.getJobIds().forEach((jobId) -> {
+                    startQueued(jobId);
+                });
+            });
+        });
+
         if (cmd.hasOption("port")) {
             String port = cmd.getOptionValue("port");
             try {
@@ -81,6 +130,8 @@ class Server extends UnicastRemoteObject implements ServerCommander {
             }
         }
 
+        mResumeInterrupted = cmd.hasOption("resume");
+
         mJotaManager.load();
         intiListeners();
         startServer();
@@ -125,11 +176,31 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         return mJobManager.getJobs();
     }
 
+    @Override
+    public String getBandwidth() throws RemoteException {
+        return mOptions.getBandwidth();
+    }
+
     @Override
     public String getLogDir() throws RemoteException {
         return mOptions.getLogDir();
     }
 
+    @Override
+    public int getMaxProcesses() throws RemoteException {
+        return mOptions.getMaxProcesses();
+    }
+
+    @Override
+    public String getQueue() throws RemoteException {
+        return mExecutionPool.getStatus() + mRunQueue.getStatus();
+    }
+
+    @Override
+    public String getResourceLimits() throws RemoteException {
+        return mOptions.getResourceLimits();
+    }
+
     @Override
     public String getRsyncPath() throws RemoteException {
         return mOptions.getRsyncPath();
@@ -148,8 +219,27 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         builder.append(String.format("  %s%d", StringUtils.rightPad("clients", pad), mClientCallbacks.size())).append("\n");
         builder.append(String.format("  %s%s", StringUtils.rightPad("cron active", pad), mOptions.isCronActive())).append("\n");
         builder.append(String.format("  %s%s", StringUtils.rightPad("rsync", pad), mOptions.getRsyncPath())).append("\n");
+        builder.append(String.format("  %s%d", StringUtils.rightPad("max rsync", pad), mOptions.getMaxProcesses())).append("\n");
+        builder.append(String.format("  %s%s", StringUtils.rightPad("bandwidth", pad), mBandwidthBudget.getStatus())).append("\n");
+        builder.append(String.format("  %s%s", StringUtils.rightPad("tag limits", pad), StringUtils.defaultIfBlank(mOptions.getResourceLimits(), "-"))).append("\n");
+        builder.append(String.format("  %s%d", StringUtils.rightPad("running jobs", pad), mJobExecutors.size())).append("\n");
+        builder.append(String.format("  %s%d/%d (%d queued)", StringUtils.rightPad("task threads", pad), mTaskExecutorService.getActiveCount(), mTaskExecutorService.getMaximumPoolSize(), mTaskExecutorService.getQueue().size())).append("\n");
+        if (!mInterrupted.isEmpty()) {
+            ArrayList<String> names = new ArrayList<>();
+            mInterrupted.keySet().forEach((jobId) -> {
+                Job job = mJobManager.getJobById(jobId);
+                names.add(job == null ? String.valueOf(jobId) : job.getName());
+            });
+            builder.append(String.format("  %s%s", StringUtils.rightPad("interrupted", pad), StringUtils.join(names, ", "))).append("\n");
+        }
         builder.append(String.format("  %s%d", StringUtils.rightPad("jobs", pad), mJobManager.getJobs().size())).append("\n");
         builder.append(String.format("  %s%d", StringUtils.rightPad("tasks", pad), mTaskManager.getTasks().size())).append("\n");
+        builder.append(mExecutionPool.getStatus());
+        builder.append(mRunQueue.getStatus());
+        builder.append(mPressureMonitor.getStatus());
+        if (mOptions.isCronActive()) {
+            builder.append(mCronRegistry.getStatus());
+        }
         String status = builder.toString();
         Xlog.timedOut(status);
 
@@ -223,6 +313,23 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         }
     }
 
+    @Override
+    public boolean resumeJob(Job job) throws RemoteException {
+        if (isRunning(job)) {
+            return false;
+        }
+
+        JobCheckpoint checkpoint = mInterrupted.remove(job.getId());
+        if (checkpoint == null) {
+            Xlog.timedErr(String.format(mJotaBundle.getString("job_not_interrupted"), job.getName()));
+            return false;
+        }
+
+        startJob(job, false, null, checkpoint);
+
+        return true;
+    }
+
     @Override
     public void saveJota() throws RemoteException {
         try {
@@ -258,11 +365,39 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         mJobManager.setJobs(jobs);
     }
 
+    @Override
+    public void setBandwidth(String bandwidth) throws RemoteException {
+        try {
+            BandwidthBudget.getBudget(bandwidth, LocalTime.now());
+            mOptions.setBandwidth(bandwidth);
+        } catch (IllegalArgumentException ex) {
+            Xlog.timedErr(String.format("Invalid bandwidth: %s", ex.getMessage()));
+        }
+    }
+
     @Override
     public void setLogDir(String path) throws RemoteException {
         mOptions.setLogDir(path);
     }
 
+    @Override
+    public void setMaxProcesses(int maxProcesses) throws RemoteException {
+        mOptions.setMaxProcesses(maxProcesses);
+        mExecutionPool.update();
+        updateTaskExecutorService();
+    }
+
+    @Override
+    public void setResourceLimits(String resourceLimits) throws RemoteException {
+        try {
+            ResourceTags.parseLimits(resourceLimits);
+            mOptions.setResourceLimits(resourceLimits);
+            mExecutionPool.update();
+        } catch (IllegalArgumentException ex) {
+            Xlog.timedErr(String.format("Invalid resource limit: %s", ex.getMessage()));
+        }
+    }
+
     @Override
     public void setRsyncPath(String path) throws RemoteException {
         mOptions.setRsyncPath(path);
@@ -292,25 +427,83 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         }
     }
 
+    /**
+     * Starts a run of the changes collected by the source watcher, applying
+     * the overlap policy of the job if it is running.
+     *
+     * @param changes changed paths by task id, null paths for a full run of
+     * the task
+     * @return true if the changes were started or skipped, false if they are
+     * to be kept and offered again, while the job runs or its start is
+     * deferred
+     */
+    boolean startChanges(Job job, Map<Long, Set<String>> changes) {
+        synchronized (mRunQueue) {
+            if (mJobExecutors.containsKey(job.getId())) {
+                if (job.getOverlap() == Job.Overlap.SKIP) {
+                    Xlog.timedOut(String.format(mBundle.getString("watch_skipped"), job.getName()));
+                    return true;
+                }
+
+                // kept and merged with later changes, like a coalesced run
+                return false;
+            } else if (mPressureMonitor.defer(job) != null) {
+                return false;
+            }
+
+            try {
+                startJob(job, false, changes);
+            } catch (RemoteException ex) {
+                Xlog.timedErr(ex.getLocalizedMessage());
+            }
+
+            return true;
+        }
+    }
+
     @Override
     public void startJob(Job job, boolean dryRun) throws RemoteException {
-        Xlog.timedOut(String.format("Job started: %s", job.getName()));
-        for (ClientCallbacks clientCallback : mClientCallbacks) {
-            clientCallback.onProcessEvent(ProcessEvent.STARTED, job, null, null);
-        }
+        startJob(job, dryRun, null);
+    }
 
-        JobExecutor jobExecutor = new JobExecutor(this, job, dryRun);
-        mJobExecutors.put(job.getId(), jobExecutor);
-        jobExecutor.start();
+    /**
+     * Starts a job, only the tasks in changes if not null.
+     *
+     * @param changes changed paths by task id, null paths for a full run of
+     * the task
+     */
+    void startJob(Job job, boolean dryRun, Map<Long, Set<String>> changes) throws RemoteException {
+        startJob(job, dryRun, changes, null);
+    }
+
+    private void startJob(Job job, boolean dryRun, Map<Long, Set<String>> changes, JobCheckpoint resume) throws RemoteException {
+        // the same lock as the scheduled starts, a job never runs twice
+        synchronized (mRunQueue) {
+            if (mJobExecutors.containsKey(job.getId())) {
+                Xlog.timedOut(String.format("Job already running: %s", job.getName()));
+                return;
+            }
+
+            Xlog.timedOut(String.format("Job started: %s", job.getName()));
+
+            if (resume == null && changes == null && !dryRun) {
+                // a new full run replaces the checkpoint of an interrupted one
+                mInterrupted.remove(job.getId());
+            }
+
+            JobExecutor jobExecutor = new JobExecutor(this, job, dryRun, changes, resume);
+            mJobExecutors.put(job.getId(), jobExecutor);
+            mExecutorService.execute(jobExecutor);
+        }
     }
 
     @Override
     public void stopJob(Job job) throws RemoteException {
         Xlog.timedOut(String.format("Cancel job: %s", job.getName()));
-        try {
-            mJobExecutors.get(job.getId()).stopJob();
-            mJobExecutors.remove(job.getId());
-        } catch (NullPointerException e) {
+        // the executor removes itself once it has stopped, until then the job is running
+        JobExecutor jobExecutor = mJobExecutors.get(job.getId());
+        if (jobExecutor != null) {
+            jobExecutor.stopJob();
         }
     }
 
@@ -319,34 +512,41 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         return new JobValidator(job);
     }
 
-    private void cronOff() {
-        if (mScheduler.isStarted()) {
-            mScheduler.stop();
+    /**
+     * Queues the runs missed while the server was down, for the jobs that
+     * catch up.
+     */
+    private void catchUp() {
+        long checked = mRunQueue.getChecked();
+        long now = System.currentTimeMillis();
+        if (checked <= 0) {
+            return;
         }
 
-        mScheduler = new Scheduler();
-    }
-
-    private void cronOn() {
-        cronOff();
-
         for (Job job : mJobManager.getJobs()) {
-            if (job.isCronActive()) {
-                for (String cronString : StringUtils.split(job.getCronItems(), "|")) {
-                    mScheduler.schedule(cronString, () -> {
-                        try {
-                            if (!isRunning(job)) {
-                                startJob(job, false);
-                            }
-                        } catch (RemoteException ex) {
-                            Xlog.timedErr(ex.getLocalizedMessage());
-                        }
+            if (job.isCronActive() && job.getCatchUp() != Job.CatchUp.SKIP) {
+                List<Long> missed = RunQueue.getMissed(job, checked, now);
+                if (!missed.isEmpty()) {
+                    List<Long> runs = job.getCatchUp() == Job.CatchUp.ONCE ? missed.subList(missed.size() - 1, missed.size()) : missed;
+                    runs.forEach((time) -> {
+                        mRunQueue.add(job.getId(), time, RunQueue.Reason.MISSED);
                     });
+                    Xlog.timedOut(String.format(mBundle.getString("run_missed"), missed.size(), job.getName(), Jota.millisToDateTime(checked), runs.size()));
                 }
             }
         }
+    }
 
-        mScheduler.start();
+    private void cronOff() {
+        mSourceWatcher.stop();
+        mCronRegistry.stop();
+    }
+
+    private void cronOn() {
+        // the last time the scheduler ran is where missed runs are counted from
+        mRunQueue.setChecked(System.currentTimeMillis());
+        mCronRegistry.update(mJobManager.getJobs());
+        mSourceWatcher.start(mJobManager.getJobs());
     }
 
     private void intiListeners() {
@@ -378,6 +578,37 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         });
     }
 
+    /**
+     * Finds the runs interrupted by a crash of the server and resumes them if
+     * started with --resume, or keeps them for a client to resume.
+     */
+    private void loadInterrupted() {
+        for (JobCheckpoint checkpoint : JobCheckpoint.loadAll()) {
+            Job job = mJobManager.getJobById(checkpoint.getJobId());
+            if (job == null) {
+                checkpoint.delete();
+                continue;
+            }
+
+            try {
+                FileUtils.write(mJotaManager.getHistoryFile(), String.format("%d %s %s\n", job.getId(), Jota.nowToDateTime(), mBundle.getString("history_interrupted")), Charset.defaultCharset(), true);
+            } catch (IOException ex) {
+                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            }
+
+            Xlog.timedOut(String.format(mBundle.getString("job_interrupted"), job.getName(), checkpoint.getCompleted().size()));
+            mInterrupted.put(job.getId(), checkpoint);
+
+            if (mResumeInterrupted) {
+                try {
+                    resumeJob(job);
+                } catch (RemoteException ex) {
+                    Xlog.timedErr(ex.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
     private void notifyClientsShutdown() {
         mClientCallbacks.stream().forEach((clientCallback) -> {
             try {
@@ -388,6 +619,45 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         });
     }
 
+    /**
+     * Starts a scheduled run, or queues it if the job is already running.
+     */
+    private void trigger(Job job) {
+        synchronized (mRunQueue) {
+            if (mJobExecutors.containsKey(job.getId())) {
+                long now = System.currentTimeMillis();
+                switch (job.getOverlap()) {
+                    case SKIP: {
+                        Xlog.timedOut(String.format(mBundle.getString("run_skipped"), job.getName()));
+                    }
+                    break;
+
+                    case COALESCE: {
+                        int count = mRunQueue.coalesce(job.getId(), now);
+                        Xlog.timedOut(String.format(mBundle.getString("run_coalesced"), job.getName(), count + 1));
+                    }
+                    break;
+
+                    default: {
+                        if (mRunQueue.add(job.getId(), now, RunQueue.Reason.BUSY)) {
+                            Xlog.timedOut(String.format(mBundle.getString("run_busy"), job.getName()));
+                        }
+                    }
+                    break;
+                }
+            } else if (mPressureMonitor.defer(job) != null) {
+                mRunQueue.add(job.getId(), System.currentTimeMillis(), RunQueue.Reason.DEFERRED);
+            } else {
+                mRunQueue.remove(job.getId(), RunQueue.Reason.DEFERRED);
+                try {
+                    startJob(job, false);
+                } catch (RemoteException ex) {
+                    Xlog.timedErr(ex.getLocalizedMessage());
+                }
+            }
+        }
+    }
+
     private void startServer() {
         mRmiNameServer = JotaHelper.getRmiName(SystemHelper.getHostname(), mPort, JotaServer.class);
 
@@ -400,10 +670,17 @@ class Server extends UnicastRemoteObject implements ServerCommander {
             Xlog.timedOut(message);
             listJobs();
             listTasks();
+            loadInterrupted();
+            if (mOptions.isCronActive()) {
+                catchUp();
+            }
             getStatus();
             if (mOptions.isCronActive()) {
                 cronOn();
             }
+            mRunQueue.getJobIds().forEach((jobId) -> {
+                startQueued(jobId);
+            });
         } catch (IllegalArgumentException e) {
             Xlog.timedErr(e.getLocalizedMessage());
             Jota.exit();
@@ -417,11 +694,67 @@ class Server extends UnicastRemoteObject implements ServerCommander {
         }
     }
 
+    private synchronized void updateTaskExecutorService() {
+        int maxProcesses = Math.max(1, mOptions.getMaxProcesses());
+        // the core size may not pass the maximum at any point
+        if (maxProcesses > mTaskExecutorService.getMaximumPoolSize()) {
+            mTaskExecutorService.setMaximumPoolSize(maxProcesses);
+            mTaskExecutorService.setCorePoolSize(maxProcesses);
+        } else {
+            mTaskExecutorService.setCorePoolSize(maxProcesses);
+            mTaskExecutorService.setMaximumPoolSize(maxProcesses);
+        }
+    }
+
+    BandwidthBudget getBandwidthBudget() {
+        return mBandwidthBudget;
+    }
+
     Set<ClientCallbacks> getClientCallbacks() {
         return mClientCallbacks;
     }
 
-    HashMap<Long, JobExecutor> getJobExecutors() {
+    ExecutionPool getExecutionPool() {
+        return mExecutionPool;
+    }
+
+    Map<Long, JobExecutor> getJobExecutors() {
         return mJobExecutors;
     }
+
+    ExecutorService getTaskExecutorService() {
+        return mTaskExecutorService;
+    }
+
+    /**
+     * Starts the next queued run of the job unless it is running or its start
+     * is deferred, an interrupted run of the job is resumed instead of
+     * started over.
+     */
+    void startQueued(long jobId) {
+        synchronized (mRunQueue) {
+            Job job = mJobManager.getJobById(jobId);
+            if (job == null) {
+                mRunQueue.remove(jobId);
+                mPressureMonitor.remove(jobId);
+                return;
+            }
+
+            if (mJobExecutors.containsKey(jobId) || !mRunQueue.getJobIds().contains(jobId) || mPressureMonitor.defer(job) != null) {
+                return;
+            }
+
+            RunQueue.Run run = mRunQueue.poll(jobId);
+            if (run != null) {
+                Xlog.timedOut(String.format(mBundle.getString("run_queued_start"), job.getName(), Jota.millisToDateTime(run.getDue())));
+                try {
+                    if (!mInterrupted.containsKey(jobId) || !resumeJob(job)) {
+                        startJob(job, false);
+                    }
+                } catch (RemoteException ex) {
+                    Xlog.timedErr(ex.getLocalizedMessage());
+                }
+            }
+        }
+    }
 }
@@ -31,11 +31,17 @@ import org.apache.commons.lang3.StringUtils;
 enum ServerOptions {
 
     INSTANCE;
+    public static final String DEFAULT_BANDWIDTH = "";
     public static final boolean DEFAULT_CRON_ACTIVE = false;
     public static final String DEFAULT_LOG_DIR = new File(FileUtils.getUserDirectory(), ".config/jotasync/log").getAbsolutePath();
+    public static final int DEFAULT_MAX_PROCESSES = 4;
+    public static final String DEFAULT_RESOURCE_LIMITS = "";
     public static final String DEFAULT_RSYNC_PATH = "rsync";
+    public static final String KEY_BANDWIDTH = "bandwidth";
     public static final String KEY_CRON_ACTIVE = "cron_active";
     public static final String KEY_LOG_DIR = "logDir";
+    public static final String KEY_MAX_PROCESSES = "max_processes";
+    public static final String KEY_RESOURCE_LIMITS = "resource_limits";
     public static final String KEY_RSYNC_PATH = "rsync";
     public static final String KEY_SELECTED_JOB = "job";
     public static final String KEY_SPEED_DIAL = "speedDial_";
@@ -52,6 +58,10 @@ enum ServerOptions {
         }
     }
 
+    String getBandwidth() {
+        return mPreferences.get(KEY_BANDWIDTH, DEFAULT_BANDWIDTH);
+    }
+
     long getJobId() {
         return mPreferences.getLong(KEY_SELECTED_JOB, 0);
     }
@@ -65,10 +75,18 @@ enum ServerOptions {
         return dir;
     }
 
+    int getMaxProcesses() {
+        return mPreferences.getInt(KEY_MAX_PROCESSES, DEFAULT_MAX_PROCESSES);
+    }
+
     Preferences getPreferences() {
         return mPreferences;
     }
 
+    String getResourceLimits() {
+        return mPreferences.get(KEY_RESOURCE_LIMITS, DEFAULT_RESOURCE_LIMITS);
+    }
+
     String getRsyncPath() {
         return mPreferences.get(KEY_RSYNC_PATH, DEFAULT_RSYNC_PATH);
     }
@@ -103,6 +121,10 @@ enum ServerOptions {
         return mPreferences.getBoolean(KEY_CRON_ACTIVE, DEFAULT_CRON_ACTIVE);
     }
 
+    void setBandwidth(String value) {
+        mPreferences.put(KEY_BANDWIDTH, value);
+    }
+
     void setCronActive(boolean value) {
         mPreferences.putBoolean(KEY_CRON_ACTIVE, value);
     }
@@ -115,6 +137,14 @@ enum ServerOptions {
         mPreferences.put(KEY_LOG_DIR, value);
     }
 
+    void setMaxProcesses(int value) {
+        mPreferences.putInt(KEY_MAX_PROCESSES, value);
+    }
+
+    void setResourceLimits(String value) {
+        mPreferences.put(KEY_RESOURCE_LIMITS, value);
+    }
+
     void setRsyncPath(String value) {
         mPreferences.put(KEY_RSYNC_PATH, value);
     }
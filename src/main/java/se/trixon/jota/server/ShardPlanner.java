@@ -0,0 +1,256 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+
+/**
+ * Splits a local rsync source into balanced --files-from lists.
+ *
+ * The source is walked in parallel and every file is assigned to the shard
+ * with the least number of bytes so far. Empty directories are listed too so
+ * that they are created. The lists are written while walking, the tree is
+ * never held in memory.
+ *
+ * @author Patrik Karlström
+ */
+class ShardPlanner {
+
+    private final Path mBase;
+    private final String mPrefix;
+    private final Shard[] mShards;
+    private final Path mSource;
+
+    /**
+     * Returns true if the source can be walked locally.
+     */
+    static boolean isLocal(String source) {
+        if (SystemUtils.IS_OS_WINDOWS || StringUtils.isBlank(source) || isRemote(source)) {
+            return false;
+        }
+
+        return new File(source).isDirectory();
+    }
+
+    /**
+     * Returns true if rsync reaches the location over the network,
+     * rsync://host/module, host::module or host:path.
+     */
+    static boolean isRemote(String location) {
+        if (StringUtils.isBlank(location)) {
+            return false;
+        } else if (location.startsWith("rsync://")) {
+            return true;
+        }
+
+        // host:path, but not ./dir:with:colons
+        int colon = location.indexOf(':');
+        int slash = location.indexOf('/');
+        if (colon < 0 || slash >= 0 && slash < colon) {
+            return false;
+        }
+
+        // nor a drive, C:\dir, or C:/dir on Windows
+        boolean drive = colon == 1 && Character.isLetter(location.charAt(0));
+
+        return !(drive && (SystemUtils.IS_OS_WINDOWS || location.startsWith("\\", 2)));
+    }
+
+    /**
+     * @param source the task source, a trailing / means the content of the
+     * directory, just like rsync
+     * @param numOfShards number of lists
+     */
+    ShardPlanner(String source, int numOfShards) {
+        mSource = new File(source).toPath().toAbsolutePath().normalize();
+
+        if (source.endsWith("/")) {
+            mBase = mSource;
+            mPrefix = "";
+        } else {
+            mBase = mSource.getParent();
+            mPrefix = mSource.getFileName().toString() + "/";
+        }
+
+        mShards = new Shard[numOfShards];
+        for (int i = 0; i < numOfShards; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Returns the directory that the listed paths are relative to.
+     */
+    String getBase() {
+        return mBase.toString() + "/";
+    }
+
+    /**
+     * Walks the source and writes one list per shard, empty shards are left
+     * out.
+     *
+     * @return the lists, the caller deletes them
+     * @throws IOException if the source could not be read or a name can not
+     * be listed
+     */
+    List<File> plan() throws IOException {
+        try {
+            for (Shard shard : mShards) {
+                shard.open();
+            }
+
+            ForkJoinPool.commonPool().invoke(new Walker(mSource, mPrefix));
+
+            ArrayList<File> files = new ArrayList<>();
+            for (Shard shard : mShards) {
+                shard.close();
+                if (shard.mNumOfEntries > 0) {
+                    files.add(shard.mFile);
+                } else {
+                    Files.deleteIfExists(shard.mFile.toPath());
+                }
+            }
+
+            return files;
+        } catch (IOException | RuntimeException ex) {
+            for (Shard shard : mShards) {
+                shard.close();
+                if (shard.mFile != null) {
+                    Files.deleteIfExists(shard.mFile.toPath());
+                }
+            }
+
+            if (ex instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex).getCause();
+            }
+
+            throw ex;
+        }
+    }
+
+    private synchronized void assign(List<String> paths, List<Long> sizes) {
+        for (int i = 0; i < paths.size(); i++) {
+            Shard lightest = mShards[0];
+            for (Shard shard : mShards) {
+                if (shard.mBytes < lightest.mBytes) {
+                    lightest = shard;
+                }
+            }
+
+            lightest.write(paths.get(i), sizes.get(i));
+        }
+    }
+
+    private static class Shard {
+
+        private long mBytes;
+        private File mFile;
+        private long mNumOfEntries;
+        private BufferedWriter mWriter;
+
+        void close() {
+            if (mWriter != null) {
+                try {
+                    mWriter.close();
+                } catch (IOException ex) {
+                    //nvm
+                }
+                mWriter = null;
+            }
+        }
+
+        void open() throws IOException {
+            mFile = File.createTempFile("jota-shard-", ".txt");
+            mWriter = Files.newBufferedWriter(mFile.toPath(), Charset.defaultCharset());
+        }
+
+        void write(String path, long size) {
+            try {
+                mWriter.write(path);
+                mWriter.write('\n');
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            // count every entry as at least one block to balance small files
+            mBytes += Math.max(size, 4096);
+            mNumOfEntries++;
+        }
+    }
+
+    private class Walker extends RecursiveAction {
+
+        private final Path mDirectory;
+        private final String mRelative;
+
+        Walker(Path directory, String relative) {
+            mDirectory = directory;
+            mRelative = relative;
+        }
+
+        @Override
+        protected void compute() {
+            ArrayList<String> paths = new ArrayList<>();
+            ArrayList<Long> sizes = new ArrayList<>();
+            ArrayList<Walker> walkers = new ArrayList<>();
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory)) {
+                for (Path path : directoryStream) {
+                    String name = path.getFileName().toString();
+                    if (StringUtils.containsAny(name, '\n', '\r')) {
+                        throw new IOException("Can not list a name with a line break: " + path);
+                    }
+
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        walkers.add(new Walker(path, mRelative + name + "/"));
+                    } else {
+                        paths.add(mRelative + name);
+                        sizes.add(attributes.size());
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            if (paths.isEmpty() && walkers.isEmpty() && !mRelative.isEmpty()) {
+                paths.add(mRelative);
+                sizes.add(0L);
+            }
+
+            if (!paths.isEmpty()) {
+                assign(paths, sizes);
+            }
+
+            invokeAll(walkers);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Timestamped snapshots in the destination of a task.
+ *
+ * Each run is written to a new directory named by its start time, hard
+ * linked against the previous snapshot with --link-dest, so unchanged files
+ * take no space and are not copied. A run is written to a .partial directory
+ * that is renamed when rsync succeeds, an interrupted run is picked up by the
+ * next one. The symbolic link latest points to the newest snapshot.
+ *
+ * The retention keeps the newest snapshot of each of the last hours, days and
+ * weeks that have one, and always the newest snapshot.
+ *
+ * @author Patrik Karlström
+ */
+class SnapshotManager {
+
+    private static final String DELETING = ".deleting-";
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmmss");
+    private static final String LATEST = "latest";
+    private static final String PARTIAL = ".partial";
+    private final Path mDirectory;
+
+    /**
+     * Returns the snapshots to keep.
+     *
+     * @param snapshots all snapshots
+     * @param hourly number of hours to keep the newest snapshot of
+     * @param daily number of days to keep the newest snapshot of
+     * @param weekly number of weeks to keep the newest snapshot of
+     */
+    static Set<LocalDateTime> getKept(NavigableSet<LocalDateTime> snapshots, int hourly, int daily, int weekly) {
+        HashSet<LocalDateTime> kept = new HashSet<>();
+        if (snapshots.isEmpty()) {
+            return kept;
+        }
+
+        kept.add(snapshots.last());
+        keep(kept, snapshots, hourly, (time) -> time.truncatedTo(ChronoUnit.HOURS));
+        keep(kept, snapshots, daily, (time) -> time.toLocalDate());
+        keep(kept, snapshots, weekly, (time) -> time.toLocalDate().with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)));
+
+        return kept;
+    }
+
+    /**
+     * Returns true if snapshots can be made of the task, a local destination
+     * the server can list and prune.
+     */
+    static boolean isSupported(Task task) {
+        return LocalSyncEngine.isLocalDestination(task.getDestination());
+    }
+
+    private static void keep(Set<LocalDateTime> kept, NavigableSet<LocalDateTime> snapshots, int count, Function<LocalDateTime, Object> period) {
+        Object previous = null;
+        for (LocalDateTime time : snapshots.descendingSet()) {
+            if (count <= 0) {
+                break;
+            }
+
+            Object current = period.apply(time);
+            if (!current.equals(previous)) {
+                kept.add(time);
+                previous = current;
+                count--;
+            }
+        }
+    }
+
+    SnapshotManager(String destination) {
+        mDirectory = new File(destination).toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Renames a finished run to its snapshot and points latest to it.
+     *
+     * @param partial the directory returned by prepare
+     * @return the snapshot
+     * @throws IOException if the snapshot could not be renamed
+     */
+    Path commit(Path partial) throws IOException {
+        String name = partial.getFileName().toString();
+        Path snapshot = mDirectory.resolve(name.substring(0, name.length() - PARTIAL.length()));
+        Files.move(partial, snapshot, StandardCopyOption.ATOMIC_MOVE);
+
+        // replaced with a rename, latest always points to a complete snapshot
+        Path link = mDirectory.resolve("." + LATEST);
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, snapshot.getFileName());
+        Files.move(link, mDirectory.resolve(LATEST), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        return snapshot;
+    }
+
+    /**
+     * Deletes the snapshots in parallel, along with what interrupted prunes
+     * left behind. They are renamed first so that they are gone from the
+     * listing at once.
+     */
+    void delete(List<Path> snapshots) throws IOException {
+        for (Path snapshot : snapshots) {
+            Files.move(snapshot, mDirectory.resolve(DELETING + snapshot.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        ArrayList<Deleter> deleters = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory, DELETING + "*")) {
+            for (Path path : directoryStream) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    deleters.add(new Deleter(path));
+                }
+            }
+        }
+
+        try {
+            ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(deleters);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Returns the snapshots that the retention does not keep, oldest first.
+     * Nothing expires if all counts are 0.
+     */
+    List<Path> getExpired(int hourly, int daily, int weekly) throws IOException {
+        ArrayList<Path> expired = new ArrayList<>();
+        if (hourly <= 0 && daily <= 0 && weekly <= 0) {
+            return expired;
+        }
+
+        TreeMap<LocalDateTime, Path> snapshots = getSnapshots();
+        Set<LocalDateTime> kept = getKept(snapshots.navigableKeySet(), hourly, daily, weekly);
+        snapshots.forEach((time, snapshot) -> {
+            if (!kept.contains(time)) {
+                expired.add(snapshot);
+            }
+        });
+
+        return expired;
+    }
+
+    /**
+     * Returns the newest snapshot or null if there is none.
+     */
+    Path getLatest() throws IOException {
+        Map.Entry<LocalDateTime, Path> entry = getSnapshots().lastEntry();
+
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * Returns the snapshots by time, .partial runs excluded.
+     */
+    TreeMap<LocalDateTime, Path> getSnapshots() throws IOException {
+        TreeMap<LocalDateTime, Path> snapshots = new TreeMap<>();
+        if (!Files.isDirectory(mDirectory)) {
+            return snapshots;
+        }
+
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory)) {
+            for (Path path : directoryStream) {
+                LocalDateTime time = parse(path.getFileName().toString());
+                if (time != null && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    snapshots.put(time, path);
+                }
+            }
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Returns the directory to run rsync into, a .partial directory named by
+     * the time. The newest unfinished run is reused so that what it
+     * transferred is not transferred again.
+     *
+     * @param time the start of the run
+     * @param dryRun true to only name the directory
+     */
+    Path prepare(LocalDateTime time, boolean dryRun) throws IOException {
+        time = time.truncatedTo(ChronoUnit.SECONDS);
+        TreeMap<LocalDateTime, Path> snapshots = getSnapshots();
+        if (!snapshots.isEmpty() && !time.isAfter(snapshots.lastKey())) {
+            time = snapshots.lastKey().plusSeconds(1);
+        }
+
+        Path partial = mDirectory.resolve(FORMATTER.format(time) + PARTIAL);
+        if (dryRun) {
+            return partial;
+        }
+
+        Files.createDirectories(mDirectory);
+        Path unfinished = null;
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory, "*" + PARTIAL)) {
+            for (Path path : directoryStream) {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS) && (unfinished == null || path.compareTo(unfinished) > 0)) {
+                    unfinished = path;
+                }
+            }
+        }
+
+        if (unfinished == null) {
+            Files.createDirectory(partial);
+        } else if (!unfinished.equals(partial)) {
+            Files.move(unfinished, partial, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        return partial;
+    }
+
+    private LocalDateTime parse(String name) {
+        try {
+            return LocalDateTime.parse(name, FORMATTER);
+        } catch (DateTimeParseException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes a tree, the subdirectories in parallel.
+     */
+    private static class Deleter extends RecursiveAction {
+
+        private final Path mDirectory;
+
+        Deleter(Path directory) {
+            mDirectory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            ArrayList<Deleter> deleters = new ArrayList<>();
+
+            try {
+                // preserved read only directories would block the deletion of their content
+                Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(mDirectory, LinkOption.NOFOLLOW_LINKS);
+                if (!permissions.contains(PosixFilePermission.OWNER_WRITE) || !permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
+                    permissions.add(PosixFilePermission.OWNER_READ);
+                    permissions.add(PosixFilePermission.OWNER_WRITE);
+                    permissions.add(PosixFilePermission.OWNER_EXECUTE);
+                    Files.setPosixFilePermissions(mDirectory, permissions);
+                }
+
+                try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory)) {
+                    for (Path path : directoryStream) {
+                        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                            deleters.add(new Deleter(path));
+                        } else {
+                            Files.delete(path);
+                        }
+                    }
+                }
+
+                invokeAll(deleters);
+                Files.delete(mDirectory);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+}
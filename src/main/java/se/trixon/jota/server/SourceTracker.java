@@ -0,0 +1,347 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.SystemUtils;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Keeps a fingerprint of the source of each task as of its last successful
+ * run.
+ *
+ * The fingerprint covers the name, type, size, modification time, permissions
+ * and ownership of every entry in the source tree, the attributes that the
+ * quick check of rsync compares or that -a preserves, and the rsync command.
+ * If it is unchanged, rsync would find nothing to transfer from the source.
+ * Changes made on the destination side are not seen.
+ *
+ * The digest of each directory is kept in memory while the SourceWatcher
+ * watches it and dropped along with its parents on every event below it, so
+ * a walk only lists the directories that changed since the previous one and
+ * the parents they are in. Sources that are not watched are walked in full.
+ * A change is seen by the walk or invalidates the digest when its event
+ * arrives, a change made the moment before a run may be left to the next.
+ *
+ * @author Patrik Karlström
+ */
+class SourceTracker {
+
+    private final ConcurrentSkipListMap<String, byte[]> mDigests = new ConcurrentSkipListMap<>();
+    private final File mFile;
+    private final Properties mFingerprints = new Properties();
+    private long mGeneration;
+    private final HashSet<Path> mWatched = new HashSet<>();
+
+    public static SourceTracker getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private SourceTracker() {
+        mFile = new File(JotaManager.getInstance().getDirectory(), "jotasync.fingerprints");
+
+        if (mFile.isFile()) {
+            try (InputStream inputStream = Files.newInputStream(mFile.toPath())) {
+                mFingerprints.load(inputStream);
+            } catch (IOException ex) {
+                Logger.getLogger(SourceTracker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the task can be tracked, a local source without
+     * --checksum and without options that follow symlinks, the walk sees the
+     * links but not what they point to.
+     */
+    static boolean isTrackable(Task task) {
+        List<String> options = task.getOptionCommand();
+        boolean checksum = options.contains("--checksum") || options.stream().anyMatch((option) -> {
+            return option.matches("-[a-zA-Z]*c[a-zA-Z]*");
+        });
+        boolean followLinks = options.stream().anyMatch((option) -> {
+            return option.equals("--copy-links") || option.equals("--copy-unsafe-links") || option.equals("--copy-dirlinks") || option.matches("-[a-zA-Z]*[Lk][a-zA-Z]*");
+        });
+
+        return !checksum && !followLinks && ShardPlanner.isLocal(task.getSource());
+    }
+
+    /**
+     * Drops the digests of a changed path, the directories below it and the
+     * directories it is in.
+     *
+     * @param path the created, deleted or modified path
+     */
+    void changed(Path path) {
+        synchronized (mDigests) {
+            mGeneration++;
+            String key = getKey(path);
+            mDigests.subMap(key, key + Character.MAX_VALUE).clear();
+            for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+                mDigests.remove(getKey(parent));
+            }
+        }
+    }
+
+    /**
+     * Drops all digests, e.g. when events were lost.
+     */
+    void clear() {
+        synchronized (mDigests) {
+            mGeneration++;
+            mDigests.clear();
+        }
+    }
+
+    /**
+     * Returns the fingerprint of the source of the task, walking what is not
+     * known from a previous walk of a watched source.
+     *
+     * @param task the task
+     * @return the fingerprint as hex
+     * @throws IOException if the source could not be read
+     * @throws InterruptedException if interrupted
+     */
+    String getFingerprint(Task task) throws IOException, InterruptedException {
+        Path source = new File(task.getSource()).toPath().toAbsolutePath().normalize();
+        byte[] digest = null;
+        Map<String, byte[]> walked = null;
+        long generation;
+        synchronized (mDigests) {
+            generation = mGeneration;
+            if (mWatched.stream().anyMatch((root) -> source.startsWith(root))) {
+                digest = mDigests.get(getKey(source));
+                walked = new ConcurrentHashMap<>();
+            }
+        }
+
+        if (digest == null) {
+            digest = walk(source, walked);
+
+            if (walked != null) {
+                synchronized (mDigests) {
+                    // an event during the walk may be older than what was read
+                    if (generation == mGeneration) {
+                        mDigests.putAll(walked);
+                    }
+                }
+            }
+        }
+
+        MessageDigest messageDigest = createDigest();
+        messageDigest.update(StringUtils.join(task.getCommand(), "\0").getBytes(StandardCharsets.UTF_8));
+        messageDigest.update(digest);
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+
+        return builder.toString();
+    }
+
+    synchronized boolean isUnchanged(Task task, String fingerprint) {
+        return fingerprint.equals(mFingerprints.getProperty(String.valueOf(task.getId())));
+    }
+
+    /**
+     * Stores the fingerprint taken before a successful run, replacing the
+     * file in a single rename so that a crash leaves the old or the new one.
+     */
+    synchronized void setSynced(Task task, String fingerprint) {
+        mFingerprints.setProperty(String.valueOf(task.getId()), fingerprint);
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+                mFingerprints.store(outputStream, "Source fingerprints by task id");
+                outputStream.getFD().sync();
+            }
+            Files.move(tempFile.toPath(), mFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(SourceTracker.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Drops the digests of the directories below a source that is no longer
+     * watched.
+     *
+     * @param source the source
+     */
+    void unwatch(Path source) {
+        synchronized (mDigests) {
+            mWatched.remove(source);
+            clear();
+        }
+    }
+
+    /**
+     * Keeps the digests of the directories below a source that is now
+     * watched.
+     *
+     * @param source the watched source
+     */
+    void watch(Path source) {
+        // other platforms may poll for modification times only, and late
+        if (!SystemUtils.IS_OS_LINUX) {
+            return;
+        }
+
+        synchronized (mDigests) {
+            mGeneration++;
+            mWatched.add(source);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String getKey(Path directory) {
+        return directory.toString() + File.separator;
+    }
+
+    private byte[] walk(Path source, Map<String, byte[]> walked) throws IOException, InterruptedException {
+        // the walk blocks on I/O, it gets a pool of its own
+        int parallelism = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            return pool.submit(new Walker(source, walked)).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static class Holder {
+
+        private static final SourceTracker INSTANCE = new SourceTracker();
+    }
+
+    private class Walker extends RecursiveTask<byte[]> {
+
+        private final Path mDirectory;
+        private final Map<String, byte[]> mWalked;
+
+        /**
+         * @param directory the directory
+         * @param walked where to put the digests of the walked directories,
+         * null if the source is not watched
+         */
+        Walker(Path directory, Map<String, byte[]> walked) {
+            mDirectory = directory;
+            mWalked = walked;
+        }
+
+        @Override
+        protected byte[] compute() {
+            // sorted by name to get the same digest regardless of listing order
+            TreeMap<String, PosixFileAttributes> entries = new TreeMap<>();
+            TreeMap<String, byte[]> digests = new TreeMap<>();
+            TreeMap<String, Walker> walkers = new TreeMap<>();
+
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(mDirectory)) {
+                for (Path path : directoryStream) {
+                    String name = path.getFileName().toString();
+                    PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    entries.put(name, attributes);
+                    if (attributes.isDirectory()) {
+                        byte[] digest = mWalked == null ? null : mDigests.get(getKey(path));
+                        if (digest != null) {
+                            digests.put(name, digest);
+                        } else {
+                            walkers.put(name, new Walker(path, mWalked));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            invokeAll(new ArrayList<>(walkers.values()));
+
+            MessageDigest messageDigest = createDigest();
+            entries.forEach((name, attributes) -> {
+                StringBuilder builder = new StringBuilder(name).append('\0');
+                if (attributes.isDirectory()) {
+                    builder.append('d');
+                } else {
+                    builder.append(attributes.isSymbolicLink() ? 'l' : 'f').append(attributes.size());
+                }
+                builder.append(':').append(attributes.lastModifiedTime().toMillis())
+                        .append(':').append(PosixFilePermissions.toString(attributes.permissions()))
+                        .append(':').append(attributes.owner().getName())
+                        .append(':').append(attributes.group().getName());
+                messageDigest.update(builder.append('\0').toString().getBytes(StandardCharsets.UTF_8));
+
+                Walker walker = walkers.get(name);
+                if (walker != null) {
+                    messageDigest.update(walker.join());
+                } else if (digests.containsKey(name)) {
+                    messageDigest.update(digests.get(name));
+                }
+            });
+
+            byte[] digest = messageDigest.digest();
+            if (mWalked != null) {
+                mWalked.put(getKey(mDirectory), digest);
+            }
+
+            return digest;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import se.trixon.almond.util.Xlog;
+import se.trixon.jota.shared.job.Job;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Starts jobs with an active watch when the local sources of their tasks
+ * change.
+ *
+ * Events are collected until the sources have been quiet for a while, or
+ * for at most a minute during constant change, and then the job is started
+ * once with the changed directories of each task. If the event queue
+ * overflows the affected tasks are synced in full.
+ *
+ * A source that can not be watched, e.g. when the inotify watch limit is
+ * reached, is synced in full right away and then every FALLBACK_INTERVAL.
+ *
+ * @author Patrik Karlström
+ */
+class SourceWatcher {
+
+    private static final long FALLBACK_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+    private static final long MAX_DELAY = TimeUnit.SECONDS.toMillis(60);
+    private static final long QUIET_PERIOD = TimeUnit.SECONDS.toMillis(2);
+    private final HashMap<WatchKey, Path> mDirectories = new HashMap<>();
+    private long mNextFallback;
+    private final HashMap<Long, Pending> mPending = new HashMap<>();
+    private final ArrayList<Root> mRoots = new ArrayList<>();
+    private final Server mServer;
+    private final SourceTracker mSourceTracker = SourceTracker.getInstance();
+    private Thread mThread;
+    private WatchService mWatchService;
+
+    SourceWatcher(Server server) {
+        mServer = server;
+    }
+
+    /**
+     * Starts watching the tasks of the jobs with an active watch, replaces
+     * what was watched before.
+     */
+    synchronized void start(List<Job> jobs) {
+        stop();
+
+        for (Job job : jobs) {
+            if (job.isWatchActive()) {
+                for (Task task : job.getTasks()) {
+                    if (ShardPlanner.isLocal(task.getSource())) {
+                        mRoots.add(new Root(job, task));
+                    }
+                }
+            }
+        }
+
+        if (mRoots.isEmpty()) {
+            return;
+        }
+
+        try {
+            mWatchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            Xlog.timedErr(ex.getLocalizedMessage());
+        }
+
+        for (Root root : mRoots) {
+            if (mWatchService == null) {
+                root.mUnwatched = true;
+                continue;
+            }
+
+            try {
+                register(root.mSource);
+                mSourceTracker.watch(root.mSource);
+            } catch (IOException ex) {
+                unwatched(root, ex);
+            }
+        }
+
+        mNextFallback = System.currentTimeMillis();
+        mThread = new Thread(this::watch, "jota-source-watcher");
+        mThread.setDaemon(true);
+        mThread.start();
+        Xlog.timedOut(String.format("watching %d source(s), %d directories", mRoots.stream().filter((root) -> !root.mUnwatched).count(), mDirectories.size()));
+
+        ArrayList<String> unwatched = new ArrayList<>();
+        mRoots.stream().filter((root) -> root.mUnwatched).forEach((root) -> {
+            unwatched.add(String.format("%s (%s)", root.mSource, root.mJob.getName()));
+        });
+        if (!unwatched.isEmpty()) {
+            Xlog.timedErr(String.format("not watched, synced in full every %d min: %s", TimeUnit.MILLISECONDS.toMinutes(FALLBACK_INTERVAL), String.join(", ", unwatched)));
+        }
+    }
+
+    synchronized void stop() {
+        if (mWatchService != null) {
+            try {
+                mWatchService.close();
+            } catch (IOException ex) {
+                //nvm
+            }
+            mWatchService = null;
+        }
+
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+
+        mRoots.forEach((root) -> {
+            mSourceTracker.unwatch(root.mSource);
+        });
+        mDirectories.clear();
+        mPending.clear();
+        mRoots.clear();
+    }
+
+    private void changed(Path directory) {
+        long now = System.currentTimeMillis();
+
+        for (Root root : mRoots) {
+            if (directory.startsWith(root.mSource)) {
+                Pending pending = mPending.computeIfAbsent(root.mJob.getId(), (k) -> new Pending(root.mJob, now));
+                pending.mLastEvent = now;
+                pending.add(root, directory);
+            }
+        }
+    }
+
+    /**
+     * Queues a full sync of the sources that can not be watched, when the
+     * fallback interval has passed.
+     */
+    private void fallback() {
+        long now = System.currentTimeMillis();
+        if (now < mNextFallback) {
+            return;
+        }
+
+        mNextFallback = now + FALLBACK_INTERVAL;
+        for (Root root : mRoots) {
+            if (root.mUnwatched) {
+                Pending pending = mPending.computeIfAbsent(root.mJob.getId(), (k) -> new Pending(root.mJob, now));
+                pending.add(root, root.mSource);
+            }
+        }
+    }
+
+    private void overflow() {
+        long now = System.currentTimeMillis();
+        mSourceTracker.clear();
+
+        for (Root root : mRoots) {
+            Pending pending = mPending.computeIfAbsent(root.mJob.getId(), (k) -> new Pending(root.mJob, now));
+            pending.mLastEvent = now;
+            pending.add(root, root.mSource);
+        }
+    }
+
+    private void register(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey watchKey = dir.register(mWatchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                mDirectories.put(watchKey, dir);
+
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                Xlog.timedErr(exc.getLocalizedMessage());
+
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private List<Pending> poll() {
+        ArrayList<Pending> due = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Pending> iterator = mPending.values().iterator(); iterator.hasNext();) {
+            Pending pending = iterator.next();
+            boolean quiet = now - pending.mLastEvent >= QUIET_PERIOD || now - pending.mFirstEvent >= MAX_DELAY;
+
+            if (quiet) {
+                iterator.remove();
+                due.add(pending);
+            }
+        }
+
+        return due;
+    }
+
+    /**
+     * Puts back changes that could not be started, merged with those
+     * collected since.
+     */
+    private synchronized void requeue(Pending pending) {
+        if (Thread.currentThread() != mThread) {
+            return;
+        }
+
+        Pending later = mPending.put(pending.mJob.getId(), pending);
+        if (later != null) {
+            pending.add(later);
+        }
+    }
+
+    /**
+     * Marks a source that could not be watched, it is synced in full
+     * instead.
+     */
+    private void unwatched(Root root, IOException ex) {
+        root.mUnwatched = true;
+        mSourceTracker.unwatch(root.mSource);
+        mNextFallback = System.currentTimeMillis();
+        Xlog.timedErr(String.format("watch failed for %s (%s): %s", root.mSource, root.mJob.getName(), ex.getLocalizedMessage()));
+    }
+
+    private void watch() {
+        WatchService watchService;
+        synchronized (this) {
+            watchService = mWatchService;
+        }
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey watchKey = null;
+                if (watchService == null) {
+                    TimeUnit.MILLISECONDS.sleep(500);
+                } else {
+                    watchKey = watchService.poll(500, TimeUnit.MILLISECONDS);
+                }
+                List<Pending> due;
+
+                synchronized (this) {
+                    if (Thread.currentThread() != mThread) {
+                        break;
+                    }
+
+                    if (watchKey != null) {
+                        Path directory = mDirectories.get(watchKey);
+                        for (WatchEvent<?> event : watchKey.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                overflow();
+                            } else if (directory != null) {
+                                Path path = directory.resolve((Path) event.context());
+                                changed(directory);
+
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                                    try {
+                                        register(path);
+                                    } catch (IOException ex) {
+                                        for (Root root : mRoots) {
+                                            if (path.startsWith(root.mSource) && !root.mUnwatched) {
+                                                unwatched(root, ex);
+                                            }
+                                        }
+                                    }
+                                }
+
+                                // after the register, a new directory is read or its changes are seen
+                                mSourceTracker.changed(path);
+                            }
+                        }
+
+                        if (!watchKey.reset()) {
+                            mDirectories.remove(watchKey);
+                        }
+                    }
+
+                    fallback();
+                    due = poll();
+                }
+
+                for (Pending pending : due) {
+                    // a running job keeps collecting and starts again when done
+                    if (!mServer.startChanges(pending.mJob, pending.getChanges())) {
+                        requeue(pending);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //nvm, stopped
+        }
+    }
+
+    /**
+     * Changes of one job waiting to be synced.
+     */
+    private static class Pending {
+
+        private final HashMap<Long, Set<String>> mChanges = new HashMap<>();
+        private final long mFirstEvent;
+        private final Job mJob;
+        private long mLastEvent;
+
+        Pending(Job job, long now) {
+            mJob = job;
+            mFirstEvent = now;
+        }
+
+        /**
+         * Adds the changes of a later pending of the job.
+         */
+        void add(Pending later) {
+            later.mChanges.forEach((taskId, paths) -> {
+                if (paths == null || mChanges.containsKey(taskId) && mChanges.get(taskId) == null) {
+                    mChanges.put(taskId, null);
+                } else {
+                    mChanges.computeIfAbsent(taskId, (k) -> new TreeSet<>()).addAll(paths);
+                }
+            });
+            mLastEvent = Math.max(mLastEvent, later.mLastEvent);
+        }
+
+        void add(Root root, Path directory) {
+            long taskId = root.mTask.getId();
+            if (mChanges.containsKey(taskId) && mChanges.get(taskId) == null) {
+                return;
+            }
+
+            // deleted directories are synced through their closest existing parent
+            while (!Files.isDirectory(directory) && directory.startsWith(root.mSource) && !directory.equals(root.mSource)) {
+                directory = directory.getParent();
+            }
+
+            if (directory.equals(root.mSource)) {
+                mChanges.put(taskId, null);
+            } else {
+                mChanges.computeIfAbsent(taskId, (k) -> new TreeSet<>()).add(root.mBase.relativize(directory).toString() + "/");
+            }
+        }
+
+        /**
+         * Returns the changed directories relative to the rsync base of each
+         * task, null for a full sync of the task.
+         */
+        Map<Long, Set<String>> getChanges() {
+            mChanges.values().forEach((paths) -> {
+                if (paths != null) {
+                    // a directory is synced recursively, drop its changed subdirectories
+                    String previous = null;
+                    for (Iterator<String> iterator = paths.iterator(); iterator.hasNext();) {
+                        String path = iterator.next();
+                        if (previous != null && path.startsWith(previous)) {
+                            iterator.remove();
+                        } else {
+                            previous = path;
+                        }
+                    }
+                }
+            });
+
+            return mChanges;
+        }
+    }
+
+    private static class Root {
+
+        private final Path mBase;
+        private final Job mJob;
+        private final Path mSource;
+        private final Task mTask;
+        private boolean mUnwatched;
+
+        Root(Job job, Task task) {
+            mJob = job;
+            mTask = task;
+            mSource = new File(task.getSource()).toPath().toAbsolutePath().normalize();
+            mBase = task.getSource().endsWith("/") ? mSource : mSource.getParent();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import se.trixon.almond.util.Xlog;
+
+/**
+ * Reads process output line by line on a few shared threads.
+ *
+ * Each lane polls its streams without blocking, so the number of threads is
+ * independent of the number of running processes. Lines are split on \n, \r
+ * and \r\n, the same way as BufferedReader.readLine().
+ *
+ * The lanes only read, lines are handed to the consumers on a small delivery
+ * pool, one stream at a time and in order. A slow consumer holds up its own
+ * stream only. A stream with MAX_PENDING undelivered lines is not read until
+ * its consumer has caught up, so its process waits on a full pipe instead of
+ * the lines piling up in memory.
+ *
+ * @author Patrik Karlström
+ */
+class StreamPump {
+
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final int MAX_PENDING = 1000;
+    private static final long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final ExecutorService mDeliveryService;
+    private final Lane[] mLanes;
+
+    public static StreamPump getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private StreamPump() {
+        int numOfLanes = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        mLanes = new Lane[numOfLanes];
+        for (int i = 0; i < numOfLanes; i++) {
+            mLanes[i] = new Lane(i);
+            mLanes[i].start();
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadPoolExecutor deliveryService = new ThreadPoolExecutor(16, 16, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (runnable) -> {
+            Thread thread = new Thread(runnable, "jota-stream-delivery-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        deliveryService.allowCoreThreadTimeOut(true);
+        mDeliveryService = deliveryService;
+    }
+
+    /**
+     * Pumps the stream until the process has exited and the stream is
+     * drained.
+     *
+     * @param process the process owning the stream
+     * @param inputStream stdout or stderr of the process
+     * @param consumer receives every line, in order, called on a delivery
+     * thread
+     * @return completes when the last line has been delivered
+     */
+    CompletableFuture<Void> pump(Process process, InputStream inputStream, Consumer<String> consumer) {
+        Source source = new Source(process, inputStream, consumer, mDeliveryService);
+        Lane lane = mLanes[0];
+        for (Lane candidate : mLanes) {
+            if (candidate.mNumOfSources.get() < lane.mNumOfSources.get()) {
+                lane = candidate;
+            }
+        }
+
+        lane.add(source);
+
+        // Drain the tail right away instead of waiting out the idle park
+        Lane owner = lane;
+        process.onExit().thenRun(() -> {
+            LockSupport.unpark(owner);
+        });
+
+        return source.mFuture;
+    }
+
+    private static class Holder {
+
+        private static final StreamPump INSTANCE = new StreamPump();
+    }
+
+    private static class Lane extends Thread {
+
+        private final ConcurrentLinkedQueue<Source> mIncoming = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mNumOfSources = new AtomicInteger();
+        private final ArrayList<Source> mSources = new ArrayList<>();
+
+        Lane(int index) {
+            super("jota-stream-pump-" + index);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long idleNanos = MIN_IDLE_NANOS;
+
+            while (true) {
+                Source incoming;
+                while ((incoming = mIncoming.poll()) != null) {
+                    mSources.add(incoming);
+                }
+
+                boolean active = false;
+                for (Iterator<Source> iterator = mSources.iterator(); iterator.hasNext();) {
+                    Source source = iterator.next();
+                    try {
+                        active |= source.poll();
+                    } catch (IOException | RuntimeException ex) {
+                        Xlog.timedErr(ex.getLocalizedMessage());
+                        source.close();
+                    }
+
+                    if (source.mClosed) {
+                        iterator.remove();
+                        mNumOfSources.decrementAndGet();
+                    }
+                }
+
+                if (active) {
+                    idleNanos = MIN_IDLE_NANOS;
+                } else {
+                    if (mSources.isEmpty() && mIncoming.isEmpty()) {
+                        LockSupport.park(this);
+                    } else {
+                        LockSupport.parkNanos(this, idleNanos);
+                        idleNanos = Math.min(MAX_IDLE_NANOS, idleNanos * 2);
+                    }
+                }
+            }
+        }
+
+        void add(Source source) {
+            mNumOfSources.incrementAndGet();
+            mIncoming.add(source);
+            LockSupport.unpark(this);
+        }
+    }
+
+    private static class Source {
+
+        private final byte[] mBuffer = new byte[8192];
+        private volatile boolean mClosed;
+        private final Consumer<String> mConsumer;
+        private final AtomicBoolean mDeliveryScheduled = new AtomicBoolean();
+        private final ExecutorService mDeliveryService;
+        private final CompletableFuture<Void> mFuture = new CompletableFuture<>();
+        private final InputStream mInputStream;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(256);
+        private final ConcurrentLinkedQueue<String> mLines = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mNumOfLines = new AtomicInteger();
+        private boolean mPendingLineFeed;
+        private final Process mProcess;
+
+        Source(Process process, InputStream inputStream, Consumer<String> consumer, ExecutorService deliveryService) {
+            mProcess = process;
+            mInputStream = inputStream;
+            mConsumer = consumer;
+            mDeliveryService = deliveryService;
+        }
+
+        /**
+         * Stops reading, the future completes when the queued lines have
+         * been delivered.
+         */
+        void close() {
+            try {
+                mInputStream.close();
+            } catch (IOException ex) {
+                //nvm
+            }
+
+            mClosed = true;
+            scheduleDelivery();
+        }
+
+        /**
+         * Reads what is available without blocking.
+         *
+         * @return true if anything was read
+         * @throws IOException
+         */
+        boolean poll() throws IOException {
+            if (mNumOfLines.get() >= MAX_PENDING) {
+                return false;
+            }
+
+            // Check liveness before reading; everything written by an exited process is available
+            boolean alive = mProcess.isAlive();
+            int available = mInputStream.available();
+
+            if (available <= 0) {
+                if (!alive) {
+                    if (mLine.size() > 0) {
+                        deliver();
+                    }
+                    close();
+                }
+
+                return false;
+            }
+
+            int length = mInputStream.read(mBuffer, 0, Math.min(available, mBuffer.length));
+            if (length < 0) {
+                if (mLine.size() > 0) {
+                    deliver();
+                }
+                close();
+
+                return false;
+            }
+
+            for (int i = 0; i < length; i++) {
+                byte b = mBuffer[i];
+                if (b == '\n' && mPendingLineFeed) {
+                    mPendingLineFeed = false;
+                } else if (b == '\n' || b == '\r') {
+                    deliver();
+                    mPendingLineFeed = b == '\r';
+                } else {
+                    mPendingLineFeed = false;
+                    mLine.write(b);
+                }
+            }
+
+            scheduleDelivery();
+
+            return true;
+        }
+
+        private void deliver() {
+            mLines.add(new String(mLine.toByteArray(), Charset.defaultCharset()));
+            mNumOfLines.incrementAndGet();
+            mLine.reset();
+        }
+
+        /**
+         * Passes the queued lines to the consumer, on a delivery thread.
+         */
+        private void drain() {
+            do {
+                String line;
+                while ((line = mLines.poll()) != null) {
+                    mNumOfLines.decrementAndGet();
+                    try {
+                        mConsumer.accept(line);
+                    } catch (RuntimeException ex) {
+                        Xlog.timedErr(ex.getLocalizedMessage());
+                    }
+                }
+
+                // no lines are queued after close, and no other drain runs
+                if (mClosed && mLines.isEmpty()) {
+                    mFuture.complete(null);
+                }
+
+                mDeliveryScheduled.set(false);
+                // what was queued or closed after the checks above and before the reset
+            } while ((!mLines.isEmpty() || mClosed && !mFuture.isDone()) && mDeliveryScheduled.compareAndSet(false, true));
+        }
+
+        private void scheduleDelivery() {
+            if (mDeliveryScheduled.compareAndSet(false, true)) {
+                mDeliveryService.execute(this::drain);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Dependency graph of the tasks in a job.
+ *
+ * Dependencies on tasks that are not part of the job are ignored. A task is
+ * ready when every task it depends on has succeeded, and is skipped when any
+ * of them failed or was skipped itself. Ready tasks are returned in job order.
+ *
+ * @author Patrik Karlström
+ */
+class TaskGraph {
+
+    private final HashMap<Long, HashSet<Long>> mDependencies = new HashMap<>();
+    private final HashSet<Long> mDone = new HashSet<>();
+    private final HashSet<Long> mFailed = new HashSet<>();
+    private final LinkedHashSet<Task> mPending = new LinkedHashSet<>();
+
+    TaskGraph(List<Task> tasks) {
+        HashSet<Long> ids = new HashSet<>();
+        tasks.forEach((task) -> {
+            ids.add(task.getId());
+        });
+
+        for (Task task : tasks) {
+            HashSet<Long> dependencies = new HashSet<>();
+            for (Long id : task.getDependsOn()) {
+                if (ids.contains(id) && id != task.getId()) {
+                    dependencies.add(id);
+                }
+            }
+
+            mDependencies.put(task.getId(), dependencies);
+            mPending.add(task);
+        }
+    }
+
+    List<Task> getPending() {
+        return new ArrayList<>(mPending);
+    }
+
+    /**
+     * Returns the pending tasks that depend on a failed task, directly or
+     * through other skipped tasks, removes them from the pending set and
+     * counts them as failed.
+     */
+    List<Task> pollSkipped() {
+        ArrayList<Task> skipped = new ArrayList<>();
+
+        for (boolean found = true; found;) {
+            found = false;
+            for (Task task : mPending) {
+                if (mDependencies.get(task.getId()).stream().anyMatch(mFailed::contains)) {
+                    skipped.add(task);
+                    mFailed.add(task.getId());
+                    found = true;
+                }
+            }
+            mPending.removeAll(skipped);
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Returns the pending tasks whose dependencies are done and removes them
+     * from the pending set.
+     */
+    List<Task> pollReady() {
+        return pollReady(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns at most max pending tasks whose dependencies are done and
+     * removes them from the pending set.
+     */
+    List<Task> pollReady(int max) {
+        ArrayList<Task> ready = new ArrayList<>();
+
+        for (Task task : mPending) {
+            if (ready.size() >= max) {
+                break;
+            }
+
+            if (mDone.containsAll(mDependencies.get(task.getId()))) {
+                ready.add(task);
+            }
+        }
+
+        mPending.removeAll(ready);
+
+        return ready;
+    }
+
+    boolean hasDependencies() {
+        return mDependencies.values().stream().anyMatch((dependencies) -> !dependencies.isEmpty());
+    }
+
+    boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Returns true if the dependencies can not be resolved, e.g. a cycle.
+     */
+    boolean isUnresolvable() {
+        TaskGraph graph = new TaskGraph(getPending());
+        while (graph.hasPending()) {
+            List<Task> ready = graph.pollReady();
+            if (ready.isEmpty()) {
+                return true;
+            }
+
+            ready.forEach((task) -> {
+                graph.setDone(task, true);
+            });
+        }
+
+        return false;
+    }
+
+    /**
+     * @param success false if the task failed, its dependents will be skipped
+     */
+    void setDone(Task task, boolean success) {
+        if (success) {
+            mDone.add(task.getId());
+        } else {
+            mFailed.add(task.getId());
+        }
+    }
+}
@@ -28,5 +28,11 @@ public interface ClientCallbacks extends Remote {
 
     void onProcessEvent(ProcessEvent processEvent, Job job, Task task, Object object) throws RemoteException;
 
+    /**
+     * Receives the process events of a job collected since the previous
+     * batch, in the order they occurred.
+     */
+    void onProcessEvents(Job job, ProcessEventBatch processEventBatch) throws RemoteException;
+
     void onServerEvent(ServerEvent serverEvent) throws RemoteException;
 }
@@ -21,8 +21,11 @@ package se.trixon.jota.shared;
  */
 public enum ProcessEvent {
     STARTED,
+    QUEUED,
     OUT,
     ERR,
+    ITEMS,
+    PROGRESS,
     FINISHED,
     CANCELED,
     FAILED;
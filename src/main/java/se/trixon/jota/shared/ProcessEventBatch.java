@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.shared;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import se.trixon.jota.shared.job.Job;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Process events of a job, in the order they occurred, sent to the clients in
+ * one call.
+ *
+ * Consecutive output and error lines of the same task share an entry, and
+ * only the latest progress of a task is kept.
+ *
+ * @author Patrik Karlström
+ */
+public class ProcessEventBatch implements Serializable {
+
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private transient HashMap<Long, Entry> mProgress = new HashMap<>();
+    private int mSize;
+
+    public ProcessEventBatch() {
+    }
+
+    public synchronized void add(ProcessEvent processEvent, Task task, Object object) {
+        long taskId = task == null ? 0 : task.getId();
+        Entry last = mEntries.isEmpty() ? null : mEntries.get(mEntries.size() - 1);
+
+        if (processEvent == ProcessEvent.PROGRESS && mProgress.containsKey(taskId)) {
+            mProgress.get(taskId).mObjects.set(0, object);
+            return;
+        }
+
+        if (last != null && last.mProcessEvent == processEvent && last.mTask == task && (processEvent == ProcessEvent.OUT || processEvent == ProcessEvent.ERR)) {
+            last.mObjects.add(object);
+        } else {
+            Entry entry = new Entry(processEvent, task, object);
+            mEntries.add(entry);
+            if (processEvent == ProcessEvent.PROGRESS) {
+                mProgress.put(taskId, entry);
+            }
+        }
+
+        mSize++;
+    }
+
+    /**
+     * Passes the events one by one to the listener, in order.
+     */
+    public void dispatch(Job job, ServerEventListener serverEventListener) {
+        for (Entry entry : getEntries()) {
+            for (Object object : entry.getObjects()) {
+                serverEventListener.onProcessEvent(entry.getProcessEvent(), job, entry.getTask(), object);
+            }
+        }
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries));
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Returns the number of events added, replaced progress not counted.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public static class Entry implements Serializable {
+
+        private final ArrayList<Object> mObjects = new ArrayList<>();
+        private final ProcessEvent mProcessEvent;
+        private final Task mTask;
+
+        private Entry(ProcessEvent processEvent, Task task, Object object) {
+            mProcessEvent = processEvent;
+            mTask = task;
+            mObjects.add(object);
+        }
+
+        /**
+         * Returns the objects of the events, the lines of output and error
+         * entries.
+         */
+        public List<Object> getObjects() {
+            return Collections.unmodifiableList(mObjects);
+        }
+
+        public ProcessEvent getProcessEvent() {
+            return mProcessEvent;
+        }
+
+        public Task getTask() {
+            return mTask;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.shared;
+
+import java.io.Serializable;
+
+/**
+ * The progress of a running rsync, either of the current file (--progress)
+ * or of the whole task (--info=progress2).
+ *
+ * @author Patrik Karlström
+ */
+public class ProgressState implements Serializable {
+
+    private final String mEta;
+    private final int mNumOfFilesLeft;
+    private final int mNumOfFilesTotal;
+    private final int mNumOfTransferred;
+    private final boolean mOverall;
+    private final int mPercentage;
+    private final String mSize;
+    private final String mSpeed;
+
+    /**
+     * @param size transferred size as printed by rsync
+     * @param percentage 0-100
+     * @param speed e.g. 12.34MB/s
+     * @param eta e.g. 0:00:03
+     * @param numOfTransferred number of transferred files, -1 if unknown
+     * @param numOfFilesLeft files left to check, -1 if unknown
+     * @param numOfFilesTotal files to check in total, -1 if unknown
+     * @param overall true if the progress is for the whole task
+     */
+    public ProgressState(String size, int percentage, String speed, String eta, int numOfTransferred, int numOfFilesLeft, int numOfFilesTotal, boolean overall) {
+        mSize = size;
+        mPercentage = percentage;
+        mSpeed = speed;
+        mEta = eta;
+        mNumOfTransferred = numOfTransferred;
+        mNumOfFilesLeft = numOfFilesLeft;
+        mNumOfFilesTotal = numOfFilesTotal;
+        mOverall = overall;
+    }
+
+    public String getEta() {
+        return mEta;
+    }
+
+    public int getNumOfFilesLeft() {
+        return mNumOfFilesLeft;
+    }
+
+    public int getNumOfFilesTotal() {
+        return mNumOfFilesTotal;
+    }
+
+    public int getNumOfTransferred() {
+        return mNumOfTransferred;
+    }
+
+    public int getPercentage() {
+        return mPercentage;
+    }
+
+    public String getSize() {
+        return mSize;
+    }
+
+    public String getSpeed() {
+        return mSpeed;
+    }
+
+    public boolean isOverall() {
+        return mOverall;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s   %s   %s", mSize, mSpeed, mEta);
+    }
+}
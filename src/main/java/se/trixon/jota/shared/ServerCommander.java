@@ -31,6 +31,8 @@ public interface ServerCommander extends Remote {
 
     String getAboutRsync() throws RemoteException;
 
+    String getBandwidth() throws RemoteException;
+
     String getHistory() throws RemoteException;
 
     Job getJob(long jobId) throws RemoteException;
@@ -39,6 +41,12 @@ public interface ServerCommander extends Remote {
 
     String getLogDir() throws RemoteException;
 
+    int getMaxProcesses() throws RemoteException;
+
+    String getQueue() throws RemoteException;
+
+    String getResourceLimits() throws RemoteException;
+
     String getRsyncPath() throws RemoteException;
 
     long getSpeedDial(int key) throws RemoteException;
@@ -63,14 +71,28 @@ public interface ServerCommander extends Remote {
 
     void removeClient(ClientCallbacks clientCallback, String hostname) throws RemoteException;
 
+    /**
+     * Resumes the run of the job that was interrupted by a crash of the
+     * server, from its first incomplete task.
+     *
+     * @return false if there is no interrupted run of the job
+     */
+    boolean resumeJob(Job job) throws RemoteException;
+
     void saveJota() throws RemoteException;
 
+    void setBandwidth(String bandwidth) throws RemoteException;
+
     void setCronActive(boolean enable) throws RemoteException;
 
     void setJobs(LinkedList<Job> jobs) throws RemoteException;
 
     void setLogDir(String path) throws RemoteException;
 
+    void setMaxProcesses(int maxProcesses) throws RemoteException;
+
+    void setResourceLimits(String resourceLimits) throws RemoteException;
+
     void setRsyncPath(String path) throws RemoteException;
 
     void setSpeedDial(int key, long jobId) throws RemoteException;
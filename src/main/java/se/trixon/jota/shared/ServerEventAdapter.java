@@ -28,6 +28,11 @@ public class ServerEventAdapter implements ServerEventListener {
     public void onProcessEvent(ProcessEvent processEvent, Job job, Task task, Object object) {
     }
 
+    @Override
+    public void onProcessEvents(Job job, ProcessEventBatch processEventBatch) {
+        processEventBatch.dispatch(job, this);
+    }
+
     @Override
     public void onServerEvent(ServerEvent serverEvent) {
     }
@@ -26,5 +26,7 @@ public interface ServerEventListener {
 
     void onProcessEvent(ProcessEvent processEvent, Job job, Task task, Object object);
 
+    void onProcessEvents(Job job, ProcessEventBatch processEventBatch);
+
     void onServerEvent(ServerEvent serverEvent);
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.shared;
+
+import java.io.Serializable;
+
+/**
+ * One itemized rsync change.
+ *
+ * @author Patrik Karlström
+ */
+public class TransferItem implements Serializable {
+
+    private final boolean mDeletion;
+    private final String mFlags;
+    private final String mPath;
+    private final long mSize;
+
+    /**
+     * @param flags the rsync itemize flags, e.g. &gt;f+++++++++
+     * @param size the file size in bytes, -1 if unknown
+     * @param path the path relative to the destination
+     * @param deletion true if the path is deleted
+     */
+    public TransferItem(String flags, long size, String path, boolean deletion) {
+        mFlags = flags;
+        mSize = size;
+        mPath = path;
+        mDeletion = deletion;
+    }
+
+    public String getFlags() {
+        return mFlags;
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public boolean isDeletion() {
+        return mDeletion;
+    }
+
+    /**
+     * Returns true if file data is sent, as opposed to a change of
+     * attributes only.
+     */
+    public boolean isTransfer() {
+        return !mDeletion && (mFlags.charAt(0) == '<' || mFlags.charAt(0) == '>');
+    }
+
+    @Override
+    public String toString() {
+        if (mDeletion) {
+            return "deleting " + mPath;
+        } else {
+            return String.format("%s %s", mFlags, mPath);
+        }
+    }
+}
@@ -39,10 +39,20 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
 
     public static OUTPUT TO_STRING = OUTPUT.VERBOSE;
 
+    @SerializedName("catch_up")
+    private CatchUp mCatchUp = CatchUp.SKIP;
     @SerializedName("cron_active")
     private boolean mCronActive;
     @SerializedName("cron_items")
     private String mCronItems = "";
+    @SerializedName("defer_cpu")
+    private int mDeferCpu = 0;
+    @SerializedName("defer_io")
+    private int mDeferIo = 0;
+    @SerializedName("defer_load")
+    private double mDeferLoad = 0;
+    @SerializedName("defer_max")
+    private int mDeferMax = 60;
     @SerializedName("description")
     private String mDescription = "";
     @SerializedName("execute_section")
@@ -50,6 +60,10 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
     private String mHistory = "";
     @SerializedName("id")
     private long mId = System.currentTimeMillis();
+    @SerializedName("jitter")
+    private int mJitter = 0;
+    @SerializedName("jitter_mode")
+    private JitterMode mJitterMode = JitterMode.FIXED;
     @SerializedName("last_run")
     private long mLastRun = -1;
     @SerializedName("last_run_exit_code")
@@ -66,9 +80,19 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
     private String mName = "";
     @SerializedName("note")
     private String mNote = "";
+    @SerializedName("overlap")
+    private Overlap mOverlap = Overlap.QUEUE_ONE;
+    @SerializedName("priority")
+    private int mPriority = 0;
+    @SerializedName("task_concurrency")
+    private int mTaskConcurrency = 1;
     @SerializedName("tasks")
     private ArrayList<Long> mTaskIds = new ArrayList<>();
     private List<Task> mTasks = new LinkedList<>();
+    @SerializedName("time_zone")
+    private String mTimeZone = "";
+    @SerializedName("watch_active")
+    private boolean mWatchActive;
 
     public Job() {
         mExecuteSection = new JobExecuteSection();
@@ -106,10 +130,49 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return caption;
     }
 
+    /**
+     * Returns what to do with the scheduled runs missed while the server was
+     * down, skip them unless set.
+     */
+    public CatchUp getCatchUp() {
+        return mCatchUp == null ? CatchUp.SKIP : mCatchUp;
+    }
+
     public String getCronItems() {
         return mCronItems;
     }
 
+    /**
+     * Returns the CPU pressure in percent above which a scheduled start is
+     * deferred, 0 for none.
+     */
+    public int getDeferCpu() {
+        return mDeferCpu;
+    }
+
+    /**
+     * Returns the I/O pressure in percent above which a scheduled start is
+     * deferred, 0 for none.
+     */
+    public int getDeferIo() {
+        return mDeferIo;
+    }
+
+    /**
+     * Returns the load average per processor above which a scheduled start
+     * is deferred, 0 for none.
+     */
+    public double getDeferLoad() {
+        return mDeferLoad;
+    }
+
+    /**
+     * Returns the most minutes a scheduled start is deferred, 0 for no limit.
+     */
+    public int getDeferMax() {
+        return mDeferMax;
+    }
+
     public String getDescription() {
         return mDescription;
     }
@@ -126,6 +189,18 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return mId;
     }
 
+    /**
+     * Returns the window in seconds that the start of a scheduled run is
+     * spread over, 0 for none.
+     */
+    public int getJitter() {
+        return mJitter;
+    }
+
+    public JitterMode getJitterMode() {
+        return mJitterMode == null ? JitterMode.FIXED : mJitterMode;
+    }
+
     public long getLastRun() {
         return mLastRun;
     }
@@ -173,6 +248,14 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return mNote;
     }
 
+    public Overlap getOverlap() {
+        return mOverlap == null ? Overlap.QUEUE_ONE : mOverlap;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
     public String getSummaryAsHtml() {
         mSummaryBuilder = new StringBuilder("<html><body>");
         mSummaryBuilder.append("<h1>").append(getName()).append("</h1>");
@@ -197,6 +280,10 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return mSummaryBuilder.toString();
     }
 
+    public int getTaskConcurrency() {
+        return mTaskConcurrency;
+    }
+
     public ArrayList<Long> getTaskIds() {
         return mTaskIds;
     }
@@ -209,6 +296,14 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return mTasks;
     }
 
+    /**
+     * Returns the id of the time zone of the cron items, blank for the one of
+     * the server.
+     */
+    public String getTimeZone() {
+        return mTimeZone;
+    }
+
     public boolean isCronActive() {
         return mCronActive;
     }
@@ -229,6 +324,14 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         return !getName().isEmpty();
     }
 
+    public boolean isWatchActive() {
+        return mWatchActive;
+    }
+
+    public void setCatchUp(CatchUp catchUp) {
+        mCatchUp = catchUp;
+    }
+
     public void setCronActive(boolean cronActive) {
         mCronActive = cronActive;
     }
@@ -237,6 +340,22 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         mCronItems = cronItems;
     }
 
+    public void setDeferCpu(int deferCpu) {
+        mDeferCpu = deferCpu;
+    }
+
+    public void setDeferIo(int deferIo) {
+        mDeferIo = deferIo;
+    }
+
+    public void setDeferLoad(double deferLoad) {
+        mDeferLoad = deferLoad;
+    }
+
+    public void setDeferMax(int deferMax) {
+        mDeferMax = deferMax;
+    }
+
     public void setDescription(String string) {
         mDescription = string;
     }
@@ -249,6 +368,14 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         mId = id;
     }
 
+    public void setJitter(int jitter) {
+        mJitter = jitter;
+    }
+
+    public void setJitterMode(JitterMode jitterMode) {
+        mJitterMode = jitterMode;
+    }
+
     public void setLastRun(long lastRun) {
         mLastRun = lastRun;
     }
@@ -281,6 +408,18 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         mNote = string;
     }
 
+    public void setOverlap(Overlap overlap) {
+        mOverlap = overlap;
+    }
+
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public void setTaskConcurrency(int taskConcurrency) {
+        mTaskConcurrency = taskConcurrency;
+    }
+
     public void setTasks(List<Task> tasksSkip) {
         mTasks = tasksSkip;
     }
@@ -296,6 +435,14 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         }
     }
 
+    public void setTimeZone(String timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    public void setWatchActive(boolean watchActive) {
+        mWatchActive = watchActive;
+    }
+
     @Override
     public String toString() {
         if (TO_STRING == OUTPUT.NORMAL) {
@@ -307,8 +454,51 @@ public class Job extends JotaBase implements Comparable<Job>, Serializable {
         }
     }
 
+    public enum CatchUp {
+        /**
+         * Missed runs are not made up for.
+         */
+        SKIP,
+        /**
+         * One run makes up for all missed runs.
+         */
+        ONCE,
+        /**
+         * Every missed run is made up for, one after the other.
+         */
+        ALL;
+    }
+
+    public enum JitterMode {
+        /**
+         * The same offset for every run, derived from the job id.
+         */
+        FIXED,
+        /**
+         * A new random offset for every run.
+         */
+        RANDOM;
+    }
+
     public enum OUTPUT {
 
         NORMAL, VERBOSE;
     }
+
+    public enum Overlap {
+        /**
+         * A run scheduled while the job is running is dropped.
+         */
+        SKIP,
+        /**
+         * A run scheduled while the job is running waits for it, further ones
+         * are dropped while it waits.
+         */
+        QUEUE_ONE,
+        /**
+         * A run scheduled while the job is running replaces all runs waiting
+         * for the job, missed runs included.
+         */
+        COALESCE;
+    }
 }
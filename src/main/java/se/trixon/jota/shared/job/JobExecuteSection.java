@@ -42,6 +42,10 @@ public class JobExecuteSection extends JobSection implements Serializable {
     private String mBeforeCommand = "";
     @SerializedName("before_halt_on_error")
     private boolean mBeforeHaltOnError;
+    @SerializedName("hook_timeout")
+    private int mHookTimeout = 0;
+    @SerializedName("timeout")
+    private int mTimeout = 0;
 
     public String getAfterCommand() {
         return mAfterCommand;
@@ -59,6 +63,21 @@ public class JobExecuteSection extends JobSection implements Serializable {
         return mBeforeCommand;
     }
 
+    /**
+     * Returns the seconds a before or after command of the job may run, 0
+     * for no limit.
+     */
+    public int getHookTimeout() {
+        return mHookTimeout;
+    }
+
+    /**
+     * Returns the seconds the whole job may run, 0 for no limit.
+     */
+    public int getTimeout() {
+        return mTimeout;
+    }
+
     public boolean isAfter() {
         return mAfter;
     }
@@ -114,4 +133,12 @@ public class JobExecuteSection extends JobSection implements Serializable {
     public void setBeforeHaltOnError(boolean value) {
         mBeforeHaltOnError = value;
     }
+
+    public void setHookTimeout(int value) {
+        mHookTimeout = value;
+    }
+
+    public void setTimeout(int value) {
+        mTimeout = value;
+    }
 }
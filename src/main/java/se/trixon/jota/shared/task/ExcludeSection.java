@@ -17,7 +17,7 @@ package se.trixon.jota.shared.task;
 
 import com.google.gson.annotations.SerializedName;
 import java.io.Serializable;
-import java.util.List;
+import java.util.Set;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -33,25 +33,6 @@ public class ExcludeSection extends TaskSection implements Serializable {
     @SerializedName("options")
     private String mOptions = "";
 
-    @Override
-    public List<String> getCommand() {
-        mCommand.clear();
-
-        for (String option : mOptions.split(" ")) {
-            for (String option2 : option.split(OPT_SEPARATOR)) {
-                if (StringUtils.isNotBlank(option2)) {
-                    add(option2);
-                }
-            }
-        }
-
-        if (mManualFileUsed && StringUtils.isNotBlank(mManualFilePath)) {
-            add("--exclude-from=" + mManualFilePath);
-        }
-
-        return mCommand;
-    }
-
     public String getManualFilePath() {
         return mManualFilePath;
     }
@@ -66,13 +47,31 @@ public class ExcludeSection extends TaskSection implements Serializable {
 
     public void setManualFilePath(String value) {
         mManualFilePath = value;
+        invalidate();
     }
 
     public void setManualFileUsed(boolean value) {
         mManualFileUsed = value;
+        invalidate();
     }
 
     public void setOptions(String value) {
         mOptions = value;
+        invalidate();
+    }
+
+    @Override
+    protected void compile(Set<String> command) {
+        for (String option : mOptions.split(" ")) {
+            for (String option2 : option.split(OPT_SEPARATOR)) {
+                if (StringUtils.isNotBlank(option2)) {
+                    command.add(option2);
+                }
+            }
+        }
+
+        if (mManualFileUsed && StringUtils.isNotBlank(mManualFilePath)) {
+            command.add("--exclude-from=" + mManualFilePath);
+        }
     }
 }
@@ -17,7 +17,8 @@ package se.trixon.jota.shared.task;
 
 import com.google.gson.annotations.SerializedName;
 import java.io.Serializable;
-import java.util.List;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  *
@@ -28,22 +29,19 @@ public class OptionSection extends TaskSection implements Serializable {
     @SerializedName("options")
     private String mOptions = "";
 
-    @Override
-    public List<String> getCommand() {
-        mCommand.clear();
-
-        for (String option : mOptions.split(" ")) {
-            add(option);
-        }
-
-        return mCommand;
-    }
-
     public String getOptions() {
         return mOptions;
     }
 
     public void setOptions(String options) {
         mOptions = options;
+        invalidate();
+    }
+
+    @Override
+    protected void compile(Set<String> command) {
+        for (String option : StringUtils.split(mOptions, ' ')) {
+            command.add(option);
+        }
     }
 }
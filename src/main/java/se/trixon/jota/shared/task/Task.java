@@ -18,6 +18,8 @@ package se.trixon.jota.shared.task;
 import com.google.gson.annotations.SerializedName;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ResourceBundle;
 import org.apache.commons.lang3.StringUtils;
@@ -33,11 +35,15 @@ import se.trixon.jota.shared.JotaBase;
  */
 public class Task extends JotaBase implements Comparable<Task>, Serializable {
 
-    private final List<String> mCommand = new ArrayList<>();
+    private transient CommandPlan mCommandPlan;
+    @SerializedName("depends_on")
+    private ArrayList<Long> mDependsOn = new ArrayList<>();
     @SerializedName("description")
     private String mDescription = "";
     @SerializedName("destination")
     private String mDestination;
+    @SerializedName("engine")
+    private Engine mEngine = Engine.RSYNC;
     @SerializedName("environment")
     private String mEnvironment = "";
     @SerializedName("exclude_section")
@@ -47,6 +53,10 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
     private String mHistory = "";
     @SerializedName("id")
     private long mId = System.currentTimeMillis();
+    @SerializedName("itemize")
+    private boolean mItemize;
+    @SerializedName("max_deletions")
+    private int mMaxDeletions = -1;
     @SerializedName("name")
     private String mName = "";
     @SerializedName("no_additional_dir")
@@ -55,8 +65,27 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
     private String mNote = "";
     @SerializedName("option_section")
     private final OptionSection mOptionSection;
+    @SerializedName("resource_tags")
+    private String mResourceTags = "";
+    @SerializedName("resource_tags_auto")
+    private boolean mResourceTagsAuto = true;
+    private transient int mRevision;
+    @SerializedName("shards")
+    private int mShards = 0;
+    @SerializedName("skip_unchanged")
+    private boolean mSkipUnchanged;
+    @SerializedName("snapshot")
+    private boolean mSnapshot;
+    @SerializedName("snapshot_daily")
+    private int mSnapshotDaily = 7;
+    @SerializedName("snapshot_hourly")
+    private int mSnapshotHourly = 24;
+    @SerializedName("snapshot_weekly")
+    private int mSnapshotWeekly = 4;
     @SerializedName("source")
     private String mSource;
+    @SerializedName("two_phase")
+    private boolean mTwoPhase;
 
     public Task() {
         mExecuteSection = new TaskExecuteSection();
@@ -69,38 +98,26 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return mName.compareTo(o.getName());
     }
 
+    /**
+     * Returns the rsync options, excludes, source and destination. The list
+     * is immutable and shared, copy it to make changes.
+     */
     public List<String> getCommand() {
-        mCommand.clear();
-
-        if (!StringUtils.isBlank(StringUtils.join(mOptionSection.getCommand(), ""))) {
-            mCommand.addAll(mOptionSection.getCommand());
-        }
-
-        if (!StringUtils.isBlank(StringUtils.join(mExcludeSection.getCommand(), ""))) {
-            mCommand.addAll(mExcludeSection.getCommand());
-        }
-
-        String source;
-        String destination;
-
-        if (SystemUtils.IS_OS_WINDOWS) {
-            source = "/cygdrive/" + mSource.replace(":", "").replace("\\", "/");
-            destination = "/cygdrive/" + mDestination.replace(":", "").replace("\\", "/");
-        } else {
-            source = mSource;
-            destination = mDestination;
-        }
-
-        add(source);
-        add(destination);
-
-        return mCommand;
+        return getCommandPlan().mCommand;
     }
 
     public String getCommandAsString() {
         return StringUtils.join(getCommand(), " ");
     }
 
+    public ArrayList<Long> getDependsOn() {
+        if (mDependsOn == null) {
+            mDependsOn = new ArrayList<>();
+        }
+
+        return mDependsOn;
+    }
+
     public String getDescription() {
         return mDescription;
     }
@@ -109,6 +126,13 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return mDestination;
     }
 
+    /**
+     * Returns the engine that syncs the task, rsync unless set.
+     */
+    public Engine getEngine() {
+        return mEngine == null ? Engine.RSYNC : mEngine;
+    }
+
     public String getEnvironment() {
         return mEnvironment;
     }
@@ -129,6 +153,14 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return mId;
     }
 
+    /**
+     * Returns the number of planned deletions that aborts a two phase run, -1
+     * for no limit.
+     */
+    public int getMaxDeletions() {
+        return mMaxDeletions;
+    }
+
     public String getName() {
         return mName;
     }
@@ -137,10 +169,55 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return mNote;
     }
 
+    /**
+     * Returns the rsync options and excludes, without source and destination.
+     * The list is immutable and shared, copy it to make changes.
+     */
+    public List<String> getOptionCommand() {
+        return getCommandPlan().mOptionCommand;
+    }
+
     public OptionSection getOptionSection() {
         return mOptionSection;
     }
 
+    /**
+     * Returns the comma separated resource tags set by the user, the server
+     * limits the number of concurrent tasks per tag.
+     */
+    public String getResourceTags() {
+        return mResourceTags;
+    }
+
+    /**
+     * Returns the number of parallel rsync workers for a local source, 0 or 1
+     * runs a single rsync.
+     */
+    public int getShards() {
+        return mShards;
+    }
+
+    /**
+     * Returns the number of days to keep the newest snapshot of, 0 for none.
+     */
+    public int getSnapshotDaily() {
+        return mSnapshotDaily;
+    }
+
+    /**
+     * Returns the number of hours to keep the newest snapshot of, 0 for none.
+     */
+    public int getSnapshotHourly() {
+        return mSnapshotHourly;
+    }
+
+    /**
+     * Returns the number of weeks to keep the newest snapshot of, 0 for none.
+     */
+    public int getSnapshotWeekly() {
+        return mSnapshotWeekly;
+    }
+
     public String getSource() {
         return mSource;
     }
@@ -186,20 +263,68 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return mOptionSection.getCommand().contains("--dry-run");
     }
 
+    /**
+     * Returns true if the rsync output is parsed into transfer items.
+     */
+    public boolean isItemize() {
+        return mItemize;
+    }
+
     public boolean isNoAdditionalDir() {
         return mNoAdditionalDir;
     }
 
+    /**
+     * Returns true if the disks and hosts of the source and destination are
+     * added to the resource tags.
+     */
+    public boolean isResourceTagsAuto() {
+        return mResourceTagsAuto;
+    }
+
+    /**
+     * Returns true if rsync is skipped when the local source is unchanged
+     * since the last successful run.
+     */
+    public boolean isSkipUnchanged() {
+        return mSkipUnchanged;
+    }
+
+    /**
+     * Returns true if each run writes a new timestamped snapshot in the
+     * destination, hard linked against the previous one.
+     */
+    public boolean isSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Returns true if rsync runs as a dry run followed by a run of the
+     * planned files only.
+     */
+    public boolean isTwoPhase() {
+        return mTwoPhase;
+    }
+
     public boolean isValid() {
         return !getName().isEmpty();
     }
 
+    public void setDependsOn(ArrayList<Long> dependsOn) {
+        mDependsOn = dependsOn;
+    }
+
     public void setDescription(String comment) {
         mDescription = comment;
     }
 
-    public void setDestination(String destination) {
+    public synchronized void setDestination(String destination) {
         mDestination = destination;
+        mRevision++;
+    }
+
+    public void setEngine(Engine engine) {
+        mEngine = engine;
     }
 
     public void setEnvironment(String environment) {
@@ -214,6 +339,14 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         mId = id;
     }
 
+    public void setItemize(boolean itemize) {
+        mItemize = itemize;
+    }
+
+    public void setMaxDeletions(int maxDeletions) {
+        mMaxDeletions = maxDeletions;
+    }
+
     public void setName(String name) {
         mName = name;
     }
@@ -226,8 +359,45 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         mNote = string;
     }
 
-    public void setSource(String source) {
+    public void setResourceTags(String resourceTags) {
+        mResourceTags = resourceTags;
+    }
+
+    public void setResourceTagsAuto(boolean resourceTagsAuto) {
+        mResourceTagsAuto = resourceTagsAuto;
+    }
+
+    public void setShards(int shards) {
+        mShards = shards;
+    }
+
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        mSkipUnchanged = skipUnchanged;
+    }
+
+    public void setSnapshot(boolean snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    public void setSnapshotDaily(int snapshotDaily) {
+        mSnapshotDaily = snapshotDaily;
+    }
+
+    public void setSnapshotHourly(int snapshotHourly) {
+        mSnapshotHourly = snapshotHourly;
+    }
+
+    public void setSnapshotWeekly(int snapshotWeekly) {
+        mSnapshotWeekly = snapshotWeekly;
+    }
+
+    public synchronized void setSource(String source) {
         mSource = source;
+        mRevision++;
+    }
+
+    public void setTwoPhase(boolean twoPhase) {
+        mTwoPhase = twoPhase;
     }
 
     @Override
@@ -237,9 +407,70 @@ public class Task extends JotaBase implements Comparable<Task>, Serializable {
         return String.format("<html><b>%s</b><br /><i>%s</i></html>", mName, description);
     }
 
-    private void add(String command) {
-        if (!mCommand.contains(command)) {
-            mCommand.add(command);
+    /**
+     * Returns the command plan of the current revision of the task and its
+     * sections, compiled again only after an edit.
+     */
+    private synchronized CommandPlan getCommandPlan() {
+        int optionRevision = mOptionSection.getRevision();
+        int excludeRevision = mExcludeSection.getRevision();
+
+        if (mCommandPlan == null
+                || mCommandPlan.mRevision != mRevision
+                || mCommandPlan.mOptionRevision != optionRevision
+                || mCommandPlan.mExcludeRevision != excludeRevision) {
+            // the sections are read before their revisions could move on, a
+            // concurrent edit only makes the next call compile again
+            List<String> options = mOptionSection.getCommand();
+            List<String> excludes = mExcludeSection.getCommand();
+            mCommandPlan = new CommandPlan(options, excludes, mSource, mDestination, mRevision, optionRevision, excludeRevision);
+        }
+
+        return mCommandPlan;
+    }
+
+    /**
+     * The compiled command of one revision of a task.
+     */
+    private static class CommandPlan {
+
+        private final List<String> mCommand;
+        private final int mExcludeRevision;
+        private final List<String> mOptionCommand;
+        private final int mOptionRevision;
+        private final int mRevision;
+
+        CommandPlan(List<String> options, List<String> excludes, String source, String destination, int revision, int optionRevision, int excludeRevision) {
+            mRevision = revision;
+            mOptionRevision = optionRevision;
+            mExcludeRevision = excludeRevision;
+
+            ArrayList<String> optionCommand = new ArrayList<>(options.size() + excludes.size());
+            optionCommand.addAll(options);
+            optionCommand.addAll(excludes);
+            mOptionCommand = Collections.unmodifiableList(optionCommand);
+
+            if (SystemUtils.IS_OS_WINDOWS) {
+                source = "/cygdrive/" + source.replace(":", "").replace("\\", "/");
+                destination = "/cygdrive/" + destination.replace(":", "").replace("\\", "/");
+            }
+
+            LinkedHashSet<String> command = new LinkedHashSet<>(optionCommand);
+            command.add(source);
+            command.add(destination);
+            mCommand = Collections.unmodifiableList(new ArrayList<>(command));
         }
     }
+
+    public enum Engine {
+        /**
+         * An rsync process.
+         */
+        RSYNC,
+        /**
+         * The built-in engine, for a local source and destination, rsync
+         * is used for anything else.
+         */
+        JAVA;
+    }
 }
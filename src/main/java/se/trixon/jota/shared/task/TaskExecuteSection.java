@@ -17,7 +17,8 @@ package se.trixon.jota.shared.task;
 
 import com.google.gson.annotations.SerializedName;
 import java.io.Serializable;
-import java.util.List;
+import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
 
 /**
  *
@@ -49,8 +50,22 @@ public class TaskExecuteSection extends TaskSection implements Serializable {
     private String mBeforeCommand = "";
     @SerializedName("before_halt_on_error")
     private boolean mBeforeHaltOnError;
+    @SerializedName("hook_timeout")
+    private int mHookTimeout = 0;
     @SerializedName("job_halt_on_error")
     private boolean mJobHaltOnError;
+    @SerializedName("retries")
+    private int mRetries = 0;
+    @SerializedName("retry_delay")
+    private int mRetryDelay = 30;
+    @SerializedName("retry_exit_codes")
+    private String mRetryExitCodes = "23,24,30,35";
+    @SerializedName("retry_partial")
+    private boolean mRetryPartial = true;
+    @SerializedName("stall_timeout")
+    private int mStallTimeout = 0;
+    @SerializedName("timeout")
+    private int mTimeout = 0;
 
     public String getAfterCommand() {
         return mAfterCommand;
@@ -68,9 +83,60 @@ public class TaskExecuteSection extends TaskSection implements Serializable {
         return mBeforeCommand;
     }
 
-    @Override
-    public List<String> getCommand() {
-        return null;
+    /**
+     * Returns the seconds a before or after command of the task may run, 0
+     * for no limit.
+     */
+    public int getHookTimeout() {
+        return mHookTimeout;
+    }
+
+    /**
+     * Returns the number of times a failed rsync is run again, 0 for none.
+     */
+    public int getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * Returns the delay in seconds before the first retry, doubled for each
+     * retry after that.
+     */
+    public int getRetryDelay() {
+        return mRetryDelay;
+    }
+
+    /**
+     * Returns the delay in seconds before the given retry, at most an hour.
+     *
+     * @param retry 1 for the first retry
+     */
+    public long getRetryDelay(int retry) {
+        long delay = Math.max(0, mRetryDelay);
+
+        return Math.min(3600, delay << Math.min(12, Math.max(0, retry - 1)));
+    }
+
+    /**
+     * Returns the comma separated rsync exit codes that are retried.
+     */
+    public String getRetryExitCodes() {
+        return mRetryExitCodes;
+    }
+
+    /**
+     * Returns the seconds rsync may run without any output before it is
+     * stopped, 0 for no limit.
+     */
+    public int getStallTimeout() {
+        return mStallTimeout;
+    }
+
+    /**
+     * Returns the seconds each rsync run may take, 0 for no limit.
+     */
+    public int getTimeout() {
+        return mTimeout;
     }
 
     public boolean isAfter() {
@@ -109,6 +175,24 @@ public class TaskExecuteSection extends TaskSection implements Serializable {
         return mJobHaltOnError;
     }
 
+    public boolean isRetryable(int exitValue) {
+        for (String code : StringUtils.split(StringUtils.defaultString(mRetryExitCodes), ", ")) {
+            if (code.equals(String.valueOf(exitValue))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns true if rsync keeps partially transferred files when retries
+     * are enabled, so that a retry resumes them.
+     */
+    public boolean isRetryPartial() {
+        return mRetryPartial;
+    }
+
     public void setAfter(boolean value) {
         mAfter = value;
     }
@@ -157,7 +241,40 @@ public class TaskExecuteSection extends TaskSection implements Serializable {
         mBeforeHaltOnError = value;
     }
 
+    public void setHookTimeout(int value) {
+        mHookTimeout = value;
+    }
+
     public void setJobHaltOnError(boolean value) {
         mJobHaltOnError = value;
     }
+
+    public void setRetries(int value) {
+        mRetries = value;
+    }
+
+    public void setRetryDelay(int value) {
+        mRetryDelay = value;
+    }
+
+    public void setRetryExitCodes(String value) {
+        mRetryExitCodes = value;
+    }
+
+    public void setRetryPartial(boolean value) {
+        mRetryPartial = value;
+    }
+
+    public void setStallTimeout(int value) {
+        mStallTimeout = value;
+    }
+
+    public void setTimeout(int value) {
+        mTimeout = value;
+    }
+
+    @Override
+    protected void compile(Set<String> command) {
+        // the hooks are not rsync options
+    }
 }
@@ -16,22 +16,54 @@
 package se.trixon.jota.shared.task;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
+ * A section of a task, compiled into rsync options once per edit.
  *
  * @author Patrik Karlström
  */
 public abstract class TaskSection {
 
     public static final String OPT_SEPARATOR = ":::";
-    protected transient final List<String> mCommand = new ArrayList<>();
+    private transient List<String> mCommand;
+    private transient int mRevision;
 
-    public abstract List<String> getCommand();
-
-    protected void add(String command) {
-        if (!mCommand.contains(command)) {
-            mCommand.add(command);
+    /**
+     * Returns the options of the section, without duplicates. The list is
+     * immutable and shared, copy it to make changes.
+     */
+    public synchronized List<String> getCommand() {
+        if (mCommand == null) {
+            LinkedHashSet<String> command = new LinkedHashSet<>();
+            compile(command);
+            mCommand = Collections.unmodifiableList(new ArrayList<>(command));
         }
+
+        return mCommand;
+    }
+
+    /**
+     * Returns a number that changes on every edit of the section.
+     */
+    public synchronized int getRevision() {
+        return mRevision;
+    }
+
+    /**
+     * Adds the options of the section in order, duplicates are dropped.
+     */
+    protected abstract void compile(Set<String> command);
+
+    /**
+     * Drops the compiled options, to be called by every setter that changes
+     * them.
+     */
+    protected synchronized void invalidate() {
+        mCommand = null;
+        mRevision++;
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import se.trixon.jota.shared.task.Task;
+
+/**
+ * Wall time of the built-in engine against rsync -rlpt on the same generated
+ * tree, an initial copy, a resync with nothing to do and a resync after one
+ * file changed.
+ *
+ * The tree has many small files in a hundred directories and a few large
+ * ones. rsync is skipped if it is not on the path. The engine runs in this
+ * JVM after a warm up, rsync includes its process start.
+ *
+ * Run with the classes and dependencies on the class path, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... se.trixon.jota.server.LocalSyncEngineBenchmark [small files] [large files] [large MiB]
+ * </pre>
+ *
+ * @author Patrik Karlström
+ */
+public class LocalSyncEngineBenchmark {
+
+    private static final List<String> OPTIONS = Arrays.asList("-rlpt", "--delete");
+
+    public static void main(String[] args) throws Exception {
+        int numOfSmall = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int numOfLarge = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int largeSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+        Path root = Files.createTempDirectory("jota-benchmark");
+        try {
+            Path source = root.resolve("source");
+            long size = generate(source, numOfSmall, numOfLarge, largeSize);
+            System.out.format("%,d files of 4 KiB, %d files of %d MiB, %,.1f MiB in total%n%n", numOfSmall, numOfLarge, largeSize, size / 1024.0 / 1024.0);
+            System.out.format("%-10s %12s %12s %12s %10s%n", "engine", "initial ms", "no-op ms", "1 changed ms", "files");
+
+            run("warm up", source, root.resolve("warmup"), false, false);
+            run("java", source, root.resolve("java"), false, true);
+            if (isRsyncAvailable()) {
+                run("rsync", source, root.resolve("rsync"), true, true);
+            } else {
+                System.out.format("%-10s not found on the path%n", "rsync");
+            }
+        } finally {
+            delete(root);
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        try (Stream<Path> stream = Files.walk(path)) {
+            stream.sorted(Comparator.reverseOrder()).forEach((p) -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException ex) {
+                    //nvm
+                }
+            });
+        }
+    }
+
+    private static long generate(Path source, int numOfSmall, int numOfLarge, int largeSize) throws IOException {
+        Random random = new Random(0);
+        byte[] small = new byte[4096];
+        byte[] large = new byte[1024 * 1024];
+        long size = 0;
+
+        for (int i = 0; i < numOfSmall; i++) {
+            Path directory = source.resolve(String.format("dir%02d", i % 100));
+            Files.createDirectories(directory);
+            random.nextBytes(small);
+            Files.write(directory.resolve(String.format("file%05d", i)), small);
+            size += small.length;
+        }
+
+        Files.createDirectories(source.resolve("large"));
+        for (int i = 0; i < numOfLarge; i++) {
+            Path file = source.resolve("large").resolve(String.format("large%02d", i));
+            random.nextBytes(large);
+            Files.write(file, large);
+            for (int j = 1; j < largeSize; j++) {
+                Files.write(file, large, StandardOpenOption.APPEND);
+            }
+            size += (long) largeSize * large.length;
+        }
+
+        return size;
+    }
+
+    private static boolean isRsyncAvailable() {
+        try {
+            return new ProcessBuilder("rsync", "--version").redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 0;
+        } catch (IOException | InterruptedException ex) {
+            return false;
+        }
+    }
+
+    private static void run(String mode, Path source, Path destination, boolean rsync, boolean print) throws Exception {
+        Files.createDirectories(destination);
+        long initial = sync(source, destination, rsync);
+        long noop = sync(source, destination, rsync);
+
+        Path changed = source.resolve("dir00").resolve("file00000");
+        Files.write(changed, new byte[]{(byte) System.nanoTime()}, StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(System.currentTimeMillis() + 2000));
+        long oneChanged = sync(source, destination, rsync);
+
+        long numOfFiles;
+        try (Stream<Path> stream = Files.walk(destination)) {
+            numOfFiles = stream.filter(Files::isRegularFile).count();
+        }
+
+        if (print) {
+            System.out.format("%-10s %12d %12d %12d %,10d%n", mode, initial, noop, oneChanged, numOfFiles);
+        }
+    }
+
+    private static long sync(Path source, Path destination, boolean rsync) throws Exception {
+        long started = System.nanoTime();
+        int exitValue;
+
+        if (rsync) {
+            ProcessBuilder processBuilder = new ProcessBuilder("rsync");
+            processBuilder.command().addAll(OPTIONS);
+            processBuilder.command().addAll(Arrays.asList(source + "/", destination.toString()));
+            exitValue = processBuilder.redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+        } else {
+            Task task = new Task();
+            task.setSource(source + "/");
+            task.setDestination(destination.toString());
+            task.getOptionSection().setOptions(String.join(" ", OPTIONS));
+            exitValue = new LocalSyncEngine(task, false, (line) -> {
+            }, System.err::println).run();
+        }
+
+        if (exitValue != 0) {
+            throw new IllegalStateException("exit value " + exitValue);
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Thread and memory footprint of pumping the output of many concurrent
+ * processes, the shared StreamPump against two reader threads per process as
+ * before.
+ *
+ * Each process prints its lines, stays alive for a while and prints them
+ * again. The footprint is sampled while all of them are alive. A last round
+ * runs the pump with one consumer that is slow, the others should finish as
+ * fast as without it.
+ *
+ * Run with the classes and dependencies on the class path, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... se.trixon.jota.server.StreamPumpBenchmark [processes] [lines]
+ * </pre>
+ *
+ * @author Patrik Karlström
+ */
+public class StreamPumpBenchmark {
+
+    private static final int ALIVE_SECONDS = 3;
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int numOfProcesses = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int numOfLines = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        System.out.format("%d processes, %d lines each on stdout and stderr, alive for %d s%n%n", numOfProcesses, numOfLines, ALIVE_SECONDS);
+        System.out.format("%-22s %8s %8s %10s %10s %10s%n", "mode", "threads", "peak", "heap MiB", "lines", "ms");
+
+        // warm up and start the lanes of the pump before measuring
+        run("warm up", numOfProcesses / 10, numOfLines, false, false);
+        run("threads per process", numOfProcesses, numOfLines, false, true);
+        run("stream pump", numOfProcesses, numOfLines, false, false);
+        run("stream pump, 1 slow", numOfProcesses, numOfLines, true, false);
+    }
+
+    private static List<String> getCommand(int numOfLines) {
+        String script = String.format("seq %d; seq %d >&2; sleep %d; seq %d; seq %d >&2", numOfLines / 2, numOfLines / 2, ALIVE_SECONDS, numOfLines / 2, numOfLines / 2);
+
+        return Arrays.asList("sh", "-c", script);
+    }
+
+    private static void run(String mode, int numOfProcesses, int numOfLines, boolean slow, boolean threads) throws Exception {
+        System.gc();
+        THREADS.resetPeakThreadCount();
+        AtomicLong numOfDelivered = new AtomicLong();
+        ArrayList<CompletableFuture<Integer>> futures = new ArrayList<>();
+        // the fast processes, the slow one is waited for separately
+        ArrayList<CompletableFuture<Integer>> fastFutures = new ArrayList<>();
+
+        long started = System.nanoTime();
+        for (int i = 0; i < numOfProcesses; i++) {
+            Consumer<String> consumer = (line) -> {
+                numOfDelivered.incrementAndGet();
+            };
+
+            if (slow && i == 0) {
+                consumer = (line) -> {
+                    numOfDelivered.incrementAndGet();
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(5);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                };
+            }
+
+            CompletableFuture<Integer> future;
+            if (threads) {
+                Process process = new ProcessBuilder(getCommand(numOfLines)).start();
+                CompletableFuture<Void> out = read(process.getInputStream(), consumer);
+                CompletableFuture<Void> err = read(process.getErrorStream(), consumer);
+                future = process.onExit().thenCombine(CompletableFuture.allOf(out, err), (p, drained) -> p.exitValue());
+            } else {
+                future = new ProcessRunner(consumer, consumer).start(getCommand(numOfLines));
+            }
+
+            futures.add(future);
+            if (!slow || i > 0) {
+                fastFutures.add(future);
+            }
+        }
+
+        // sample while every process is sleeping between its two outputs
+        TimeUnit.MILLISECONDS.sleep(ALIVE_SECONDS * 1000 / 2);
+        System.gc();
+        int threadsAlive = THREADS.getThreadCount();
+        double heap = MEMORY.getHeapMemoryUsage().getUsed() / 1024.0 / 1024.0;
+
+        CompletableFuture.allOf(fastFutures.toArray(new CompletableFuture[0])).get();
+        long fastMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+
+        System.out.format("%-22s %8d %8d %10.1f %10d %10d%n", mode, threadsAlive, THREADS.getPeakThreadCount(), heap, numOfDelivered.get(), fastMillis);
+    }
+
+    /**
+     * Reads a stream on a thread of its own, as the process log threads did.
+     */
+    private static CompletableFuture<Void> read(InputStream inputStream, Consumer<String> consumer) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    consumer.accept(line);
+                }
+            } catch (IOException ex) {
+                //nvm
+            }
+            future.complete(null);
+        }).start();
+
+        return future;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 Patrik Karlström.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.trixon.jota.shared.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Time of Task.getCommand with a large exclude set, the cached command plan
+ * against rebuilding the command on every call as before, and a recompile
+ * after an edit.
+ *
+ * The rebuild splits the option and exclude strings and drops duplicates
+ * with List.contains, as the sections did before the plan.
+ *
+ * Run with the classes and dependencies on the class path, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... se.trixon.jota.shared.task.TaskCommandBenchmark [excludes] [calls]
+ * </pre>
+ *
+ * @author Patrik Karlström
+ */
+public class TaskCommandBenchmark {
+
+    public static void main(String[] args) {
+        int numOfExcludes = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int numOfCalls = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        ArrayList<String> excludes = new ArrayList<>();
+        for (int i = 0; i < numOfExcludes; i++) {
+            excludes.add(String.format("--exclude=dir%05d/**", i));
+        }
+        String excludeOptions = StringUtils.join(excludes, " ");
+        String options = "-a --delete --itemize-changes --stats";
+
+        Task task = new Task();
+        task.setSource("/src/");
+        task.setDestination("/dst");
+        task.getOptionSection().setOptions(options);
+        task.getExcludeSection().setOptions(excludeOptions);
+
+        System.out.format("%,d exclude patterns, %d calls%n%n", numOfExcludes, numOfCalls);
+        System.out.format("%-22s %14s %10s%n", "mode", "us per call", "args");
+
+        // warm up
+        run("warm up", numOfCalls, () -> rebuild(options, excludeOptions, task.getSource(), task.getDestination()), false);
+        run("rebuild every call", numOfCalls, () -> rebuild(options, excludeOptions, task.getSource(), task.getDestination()), true);
+        run("cached plan", numOfCalls * 1000, task::getCommand, true);
+        run("recompile after edit", numOfCalls, () -> {
+            task.getExcludeSection().setOptions(excludeOptions);
+            return task.getCommand();
+        }, true);
+    }
+
+    private static void add(List<String> command, String option) {
+        if (!command.contains(option)) {
+            command.add(option);
+        }
+    }
+
+    /**
+     * Builds the command the way Task.getCommand did before the plan.
+     */
+    private static List<String> rebuild(String options, String excludeOptions, String source, String destination) {
+        ArrayList<String> command = new ArrayList<>();
+
+        for (String option : StringUtils.split(options, ' ')) {
+            add(command, option);
+        }
+
+        for (String option : excludeOptions.split(" ")) {
+            for (String option2 : option.split(TaskSection.OPT_SEPARATOR)) {
+                if (StringUtils.isNotBlank(option2)) {
+                    add(command, option2);
+                }
+            }
+        }
+
+        add(command, source);
+        add(command, destination);
+
+        return command;
+    }
+
+    private static void run(String mode, int numOfCalls, Supplier<List<String>> call, boolean print) {
+        int size = 0;
+        long started = System.nanoTime();
+        for (int i = 0; i < numOfCalls; i++) {
+            size = call.get().size();
+        }
+        double micros = (System.nanoTime() - started) / 1000.0 / numOfCalls;
+
+        if (print) {
+            System.out.format("%-22s %14.2f %,10d%n", mode, micros, size);
+        }
+    }
+}